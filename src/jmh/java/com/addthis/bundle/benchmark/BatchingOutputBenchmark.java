@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.bundle.channel.BatchingDataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link BatchingDataChannelOutput#send(Bundle)} from several producer threads
+ * into one output whose batch sink only counts bundles, so the score is the
+ * cost of the shared lock and the batching itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BatchingOutputBenchmark {
+
+    @Param("100")
+    public int batchSize;
+
+    private CountingOutput output;
+    private List<Bundle> corpus;
+
+    @Setup
+    public void setup() {
+        output = new CountingOutput(batchSize);
+        corpus = LogCorpus.listBundles(1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+
+        int next;
+    }
+
+    @Benchmark
+    public void send(Producer producer) {
+        output.send(corpus.get(producer.next++ & 1023));
+    }
+
+    private static final class CountingOutput extends BatchingDataChannelOutput {
+
+        private final ListBundleFormat format = new ListBundleFormat();
+        private final AtomicLong sent = new AtomicLong();
+
+        CountingOutput(int batchSize) {
+            super(batchSize, 1000);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            sent.addAndGet(bundles.size());
+        }
+
+        @Override
+        public void sourceError(Throwable cause) {
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return format.createBundle();
+        }
+    }
+}
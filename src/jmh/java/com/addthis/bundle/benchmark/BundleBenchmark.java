@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.value.ValueObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Field get, set and iteration over the log corpus for each in-memory
+ * bundle implementation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleBenchmark {
+
+    @Param({"list", "index"})
+    public String type;
+
+    @Param("1000")
+    public int rows;
+
+    private List<Bundle> corpus;
+    private List<ValueObject[]> values;
+    private BundleFormat format;
+    private BundleField[] fields;
+
+    @Setup
+    public void setup() {
+        corpus = "index".equals(type) ? LogCorpus.indexBundles(rows) : LogCorpus.listBundles(rows);
+        values = LogCorpus.rows(rows);
+        format = corpus.get(0).getFormat();
+        fields = LogCorpus.fields(format);
+    }
+
+    @Benchmark
+    public void get(Blackhole blackhole) {
+        for (Bundle bundle : corpus) {
+            for (BundleField field : fields) {
+                blackhole.consume(bundle.getValue(field));
+            }
+        }
+    }
+
+    @Benchmark
+    public void set(Blackhole blackhole) {
+        for (ValueObject[] row : values) {
+            Bundle bundle = format.createBundle();
+            for (int i = 0; i < fields.length; i++) {
+                bundle.setValue(fields[i], row[i]);
+            }
+            blackhole.consume(bundle);
+        }
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (Bundle bundle : corpus) {
+            for (BundleField field : bundle) {
+                blackhole.consume(bundle.getValue(field));
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+import com.addthis.bundle.io.LazyBundle;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Stream and stateless encode/decode of the log corpus. Each invocation
+ * processes the whole corpus so scores are corpus passes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final Set<String> PROJECTION = ImmutableSet.of("country", "status");
+
+    @Param("1000")
+    public int rows;
+
+    /** stream value dictionary size, 0 to disable */
+    @Param({"0", "1024"})
+    public int valueDictionary;
+
+    /** delta encode integer fields against the previous bundle */
+    @Param({"false", "true"})
+    public boolean deltaLongs;
+
+    /** write bundles as schema rows instead of tagged fields */
+    @Param({"false", "true"})
+    public boolean schemaRows;
+
+    private List<Bundle> corpus;
+    private byte[] encoded;
+    private byte[][] encodedStateless;
+    private byte[] encodedBatch;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        corpus = LogCorpus.listBundles(rows);
+        out = new ByteArrayOutputStream();
+        encodeStream();
+        encoded = out.toByteArray();
+        encodedStateless = new byte[rows][];
+        for (int i = 0; i < rows; i++) {
+            encodedStateless[i] = DataChannelCodec.encodeBundle(corpus.get(i));
+        }
+        encodedBatch = DataChannelCodec.encodeBundles(corpus);
+    }
+
+    @Benchmark
+    public int encodeStream() throws IOException {
+        out.reset();
+        StreamState state = DataChannelCodec.createStreamState(valueDictionary, deltaLongs, schemaRows);
+        for (Bundle bundle : corpus) {
+            DataChannelCodec.encodeBundle(bundle, out, state);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public void decodeStream(Blackhole blackhole) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+        StreamState state = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < rows; i++) {
+            blackhole.consume(DataChannelCodec.decodeBundle(format.createBundle(), in, state));
+        }
+    }
+
+    @Benchmark
+    public void decodeStreamProjected(Blackhole blackhole) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+        StreamState state = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < rows; i++) {
+            blackhole.consume(DataChannelCodec.decodeBundle(format.createBundle(), in, state, PROJECTION));
+        }
+    }
+
+    @Benchmark
+    public void encodeStateless(Blackhole blackhole) throws IOException {
+        for (Bundle bundle : corpus) {
+            blackhole.consume(DataChannelCodec.encodeBundle(bundle));
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeBatch() throws IOException {
+        return DataChannelCodec.encodeBundles(corpus);
+    }
+
+    @Benchmark
+    public void decodeBatch(Blackhole blackhole) throws IOException {
+        DataChannelCodec.decodeBundles(encodedBatch, new ListBundleFormat(), blackhole::consume);
+    }
+
+    /** read two fields and forward the bundle, as a pass-through stage does */
+    @Benchmark
+    public void lazyPassThrough(Blackhole blackhole) throws IOException {
+        ListBundleFormat format = new ListBundleFormat();
+        BundleField host = format.getField("host");
+        BundleField status = format.getField("status");
+        for (byte[] row : encodedStateless) {
+            LazyBundle bundle = new LazyBundle(format, row);
+            blackhole.consume(bundle.getValue(host));
+            blackhole.consume(bundle.getValue(status));
+            blackhole.consume(DataChannelCodec.encodeBundle(bundle));
+        }
+    }
+
+    @Benchmark
+    public void decodeStateless(Blackhole blackhole) throws IOException {
+        ListBundleFormat format = new ListBundleFormat();
+        for (byte[] row : encodedStateless) {
+            blackhole.consume(DataChannelCodec.decodeBundle(format.createBundle(), row));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.util.AutoField;
+import com.addthis.bundle.util.CachingField;
+import com.addthis.bundle.util.FullAutoField;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link CachingField} and {@link FullAutoField} resolution against the log
+ * corpus. The churn case alternates between two formats, as happens when one
+ * field object is shared by several sources, so the cached field is
+ * invalidated on every access.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldBenchmark {
+
+    @Param("1000")
+    public int rows;
+
+    private List<Bundle> corpus;
+    private List<Bundle> otherCorpus;
+    private AutoField cachingField;
+    private AutoField fullAutoField;
+
+    @Setup
+    public void setup() {
+        corpus = LogCorpus.listBundles(rows);
+        otherCorpus = LogCorpus.listBundles(rows);
+        cachingField = AutoField.newAutoField("country");
+        fullAutoField = AutoField.newAutoField("geo.region");
+    }
+
+    @Benchmark
+    public void cachingField(Blackhole blackhole) {
+        for (Bundle bundle : corpus) {
+            blackhole.consume(cachingField.getValue(bundle));
+        }
+    }
+
+    @Benchmark
+    public void cachingFieldFormatChurn(Blackhole blackhole) {
+        for (int i = 0; i < rows; i++) {
+            blackhole.consume(cachingField.getValue(corpus.get(i)));
+            blackhole.consume(cachingField.getValue(otherCorpus.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void fullAutoField(Blackhole blackhole) {
+        for (Bundle bundle : corpus) {
+            blackhole.consume(fullAutoField.getValue(bundle));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.index.IndexBundleFormat;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueObject;
+
+/**
+ * Deterministic synthetic corpus shaped like web access log lines: a
+ * near-monotonic timestamp, low cardinality strings that repeat constantly
+ * (host, country, method, user agent), a few numbers and one nested map
+ * and array per row.
+ */
+public final class LogCorpus {
+
+    public static final String[] FIELDS = {
+            "time", "host", "country", "method", "path", "status", "bytes", "latency", "ua", "geo", "tags"
+    };
+
+    private static final String[] HOSTS = {"web01", "web02", "web03", "web04", "api01", "api02"};
+    private static final String[] COUNTRIES = {"US", "US", "US", "GB", "DE", "FR", "JP", "BR", "IN", "CA"};
+    private static final String[] REGIONS = {"east", "west", "north", "south"};
+    private static final String[] METHODS = {"GET", "GET", "GET", "POST", "HEAD"};
+    private static final String[] AGENTS = {
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14) AppleWebKit/605.1.15 (KHTML, like Gecko) Safari/605.1",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 12_0 like Mac OS X) AppleWebKit/605.1.15 Mobile/15E148",
+            "curl/7.61.0"
+    };
+    private static final String[] TAGS = {"cached", "gzip", "tls", "h2", "bot", "retry"};
+    private static final long[] STATUS = {200, 200, 200, 200, 304, 404, 500};
+
+    private LogCorpus() {}
+
+    /** rows of values in {@link #FIELDS} order */
+    public static List<ValueObject[]> rows(int count) {
+        Random random = new Random(count);
+        List<ValueObject[]> rows = new ArrayList<>(count);
+        long time = 1500000000000L;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(50);
+            ValueMap geo = ValueFactory.createMap();
+            geo.put("country", ValueFactory.create(pick(random, COUNTRIES)));
+            geo.put("region", ValueFactory.create(pick(random, REGIONS)));
+            ValueArray tags = ValueFactory.createArray(2);
+            tags.add(ValueFactory.create(pick(random, TAGS)));
+            tags.add(ValueFactory.create(pick(random, TAGS)));
+            rows.add(new ValueObject[]{
+                    ValueFactory.create(time),
+                    ValueFactory.create(pick(random, HOSTS)),
+                    geo.get("country"),
+                    ValueFactory.create(pick(random, METHODS)),
+                    ValueFactory.create("/content/" + random.nextInt(5000) + "/index.html"),
+                    ValueFactory.create(STATUS[random.nextInt(STATUS.length)]),
+                    ValueFactory.create((long) random.nextInt(1 << 20)),
+                    ValueFactory.create(random.nextDouble() * 250),
+                    ValueFactory.create(pick(random, AGENTS)),
+                    geo,
+                    tags
+            });
+        }
+        return rows;
+    }
+
+    public static List<Bundle> listBundles(int count) {
+        return bundles(new ListBundleFormat(), count);
+    }
+
+    public static List<Bundle> indexBundles(int count) {
+        return bundles(new IndexBundleFormat(FIELDS), count);
+    }
+
+    public static BundleField[] fields(BundleFormat format) {
+        BundleField[] fields = new BundleField[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            fields[i] = (format instanceof IndexBundleFormat) ? format.getField(i) : format.getField(FIELDS[i]);
+        }
+        return fields;
+    }
+
+    private static List<Bundle> bundles(BundleFormat format, int count) {
+        BundleField[] fields = fields(format);
+        List<Bundle> bundles = new ArrayList<>(count);
+        for (ValueObject[] row : rows(count)) {
+            Bundle bundle = format.createBundle();
+            for (int i = 0; i < fields.length; i++) {
+                bundle.setValue(fields[i], row[i]);
+            }
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.io.DataTableBlockCodec;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.table.DataTableListWrapper;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole table encode and decode of a large log corpus table with the single
+ * stream {@link DataChannelCodec} table format and the block partitioned
+ * {@link DataTableBlockCodec} format on one thread and on {@code threads}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableCodecBenchmark {
+
+    @Param("100000")
+    public int rows;
+
+    @Param("4")
+    public int threads;
+
+    private DataTable table;
+    private byte[] encoded;
+    private byte[] encodedBlocks;
+    private ExecutorService executor;
+    private ForkJoinPool pool;
+    private ForkJoinPool singlePool;
+
+    @Setup
+    public void setup() throws IOException {
+        table = new DataTableListWrapper(new ArrayList<>(LogCorpus.listBundles(rows)));
+        encoded = DataChannelCodec.toBytes(table);
+        encodedBlocks = DataTableBlockCodec.toBytes(table);
+        executor = Executors.newFixedThreadPool(threads);
+        pool = new ForkJoinPool(threads);
+        singlePool = new ForkJoinPool(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        pool.shutdown();
+        singlePool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] encodeStream() {
+        return DataChannelCodec.toBytes(table);
+    }
+
+    @Benchmark
+    public byte[] encodeBlocks() throws IOException {
+        return DataTableBlockCodec.toBytes(table, MoreExecutors.directExecutor());
+    }
+
+    @Benchmark
+    public byte[] encodeBlocksParallel() throws IOException {
+        return DataTableBlockCodec.toBytes(table, executor);
+    }
+
+    @Benchmark
+    public DataTable decodeStream() {
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>(rows));
+        DataChannelCodec.fromBytes(copy, encoded);
+        return copy;
+    }
+
+    @Benchmark
+    public DataTable decodeBlocks() throws IOException {
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>(rows));
+        DataTableBlockCodec.fromInputStream(copy, new ByteArrayInputStream(encodedBlocks), singlePool);
+        return copy;
+    }
+
+    @Benchmark
+    public DataTable decodeBlocksParallel() throws IOException {
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>(rows));
+        DataTableBlockCodec.fromInputStream(copy, new ByteArrayInputStream(encodedBlocks), pool);
+        return copy;
+    }
+}
@@ -41,7 +41,8 @@ import org.slf4j.LoggerFactory;
  * on the list have been there for more than maxTimeInMillis time.
  * <p/>
  * Subclasses will implement the {@code sendBatch} method to send the full
- * list of messages to the data channel in a single batch
+ * list of messages to the data channel in a single batch, for example as one
+ * buffer from {@link com.addthis.bundle.io.DataChannelCodec#encodeBundles(Iterable)}
  * <p/>
  * Note:  If the application crashes while messages are in the queue and before they have been sent to the
  * data channel data loss is possible.
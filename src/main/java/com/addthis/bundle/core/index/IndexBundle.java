@@ -58,7 +58,7 @@ public class IndexBundle implements Bundle {
                     if (value == null) { // unset field, user nulls are NULL and those are returned
                         continue;
                     }
-                    peek = new IndexBundleField(index);
+                    peek = new IndexBundleField(index - 1);
                     break;
                 }
                 return peek != null;
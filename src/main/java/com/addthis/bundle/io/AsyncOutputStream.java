@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An output stream that collects writes into one buffer while a dedicated
+ * thread writes previously filled buffers to the underlying stream. Wrapping
+ * the stream of a {@link DataChannelWriter} keeps disk latency off the
+ * producer, which only blocks once all {@code buffers} buffers are filled
+ * and waiting to be written.
+ * <p/>
+ * The first error from the underlying stream is rethrown by every
+ * {@link #write} and {@link #flush()} that starts after the writer thread
+ * hits it, and by {@link #close()}. Buffers handed off after it are
+ * discarded. {@link #flush()} waits until everything
+ * written so far has reached the underlying stream and it has been flushed.
+ * <p/>
+ * A write interrupted while waiting for a free buffer leaves the stream
+ * without a buffer to fill. Later writes and flushes fail, and
+ * {@link #close()} still writes out everything handed off before.
+ */
+public final class AsyncOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BUFFERS = 2;
+
+    private static final ThreadFactory THREADS =
+            new ThreadFactoryBuilder().setNameFormat("AsyncOutputStream-%d").setDaemon(true).build();
+
+    private static final class Buffer {
+
+        final byte[] data;
+        int length;
+        boolean flush;
+
+        Buffer(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private final OutputStream out;
+    private final int buffers;
+    private final Thread thread;
+    private final BlockingQueue<Object> full;
+    private final BlockingQueue<Buffer> free;
+    /** buffer being filled, or null after an interrupted hand-off */
+    private Buffer current;
+    private volatile Throwable failure;
+    private boolean closed;
+
+    public AsyncOutputStream(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+    }
+
+    /**
+     * @param bufferSize bytes per buffer
+     * @param buffers    buffers in total, one being filled and the rest
+     *                   waiting for or being written
+     */
+    public AsyncOutputStream(OutputStream out, int bufferSize, int buffers) {
+        checkArgument(bufferSize > 0, "bufferSize must be positive: %s", bufferSize);
+        checkArgument(buffers >= 2, "at least two buffers are required: %s", buffers);
+        this.out = out;
+        this.buffers = buffers;
+        // room for every buffer plus the end marker
+        this.full = new ArrayBlockingQueue<>(buffers + 1);
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 1; i < buffers; i++) {
+            free.add(new Buffer(bufferSize));
+        }
+        this.current = new Buffer(bufferSize);
+        this.thread = THREADS.newThread(this::writeLoop);
+        thread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (current.length == current.data.length) {
+            handOff(false);
+        }
+        current.data[current.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (current.length == current.data.length) {
+                handOff(false);
+            }
+            int chunk = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, chunk);
+            current.length += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /** write out and flush everything written so far, waiting for completion */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    private void drain() throws IOException {
+        handOff(true);
+        // every buffer back in the free pool means every write has completed
+        Buffer[] all = new Buffer[buffers];
+        try {
+            all[0] = current;
+            for (int i = 1; i < buffers; i++) {
+                all[i] = free.take();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for flush");
+        } finally {
+            for (int i = 1; i < buffers; i++) {
+                if (all[i] != null) {
+                    free.add(all[i]);
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /** queue the current buffer for writing and continue in a free one */
+    private void handOff(boolean flush) throws IOException {
+        checkFailure();
+        Buffer handed = current;
+        handed.flush = flush;
+        try {
+            full.put(handed);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to queue a buffer");
+        }
+        // the writer thread owns handed now
+        current = null;
+        try {
+            current = free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a free buffer");
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Object item = full.take();
+                if (item == END) {
+                    return;
+                }
+                Buffer buffer = (Buffer) item;
+                if (failure == null) {
+                    try {
+                        out.write(buffer.data, 0, buffer.length);
+                        if (buffer.flush) {
+                            out.flush();
+                        }
+                    } catch (Throwable ex) {
+                        failure = ex;
+                    }
+                }
+                buffer.length = 0;
+                free.put(buffer);
+            }
+        } catch (InterruptedException ignored) {
+            // abandoned by an interrupted close
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (current == null) {
+            throw new IOException("stream has no buffer after an interrupted write");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure;
+        if (cause != null) {
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /** write out everything, stop the writer thread and close the underlying stream */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException error = null;
+        if (current != null) {
+            try {
+                drain();
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        try {
+            full.put(END);
+            thread.join();
+        } catch (InterruptedException ex) {
+            // abandon queued buffers, but never close out under a write in progress
+            thread.interrupt();
+            Uninterruptibles.joinUninterruptibly(thread);
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            if (error == null) {
+                error = ex;
+            } else {
+                error.addSuppressed(ex);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
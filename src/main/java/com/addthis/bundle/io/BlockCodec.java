@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compression for the blocks written in {@link BlockFraming} mode. The id is
+ * stored in every block header; id 0 is reserved for blocks stored
+ * uncompressed, which the writer falls back to when compression would not
+ * shrink a block. Implementations must be safe to call from the writer and
+ * from a reader's background thread at the same time. Writers and readers
+ * do not close the codec of their framing, which may be shared.
+ */
+public interface BlockCodec extends Closeable {
+
+    /** @return id written to block headers, 1-255 */
+    int id();
+
+    /** compress {@code src[0, length)} and append the result to {@code out} */
+    void compress(byte[] src, int length, OutputStream out) throws IOException;
+
+    /**
+     * decompress {@code src[0, length)} into at most {@code rawLength} bytes of {@code dst}
+     *
+     * @return bytes written to dst, which readers require to be rawLength
+     */
+    int decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+    /** release any resources held between blocks */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Framing options for {@link DataChannelWriter} and {@link DataChannelReader}.
+ * Records are grouped into blocks of up to {@code maxBundles} bundles or
+ * about {@code maxBytes} uncompressed bytes, whichever fills first, and
+ * each block is compressed on its own. A block is
+ * <pre>
+ *   codec id (1 byte) | bundle count | raw length | stored length | stored bytes
+ * </pre>
+ * with the counts and lengths as varints. Inside a block the records are
+ * the usual length prefixed codec output, so dictionary state carries over
+ * from block to block exactly as in an unframed stream.
+ */
+public final class BlockFraming {
+
+    public static final int DEFAULT_MAX_BUNDLES = 1024;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final BlockCodec codec;
+    private final int maxBundles;
+    private final int maxBytes;
+
+    public BlockFraming(BlockCodec codec) {
+        this(codec, DEFAULT_MAX_BUNDLES, DEFAULT_MAX_BYTES);
+    }
+
+    public BlockFraming(BlockCodec codec, int maxBundles, int maxBytes) {
+        this.codec = checkNotNull(codec);
+        checkArgument(codec.id() > 0 && codec.id() < 256, "codec id must be in [1, 255]: %s", codec.id());
+        checkArgument(maxBundles > 0, "maxBundles must be positive: %s", maxBundles);
+        checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+        this.maxBundles = maxBundles;
+        this.maxBytes = maxBytes;
+    }
+
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    public int getMaxBundles() {
+        return maxBundles;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockFraming(codec=" + codec + ",maxBundles=" + maxBundles + ",maxBytes=" + maxBytes + ")";
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads and decompresses {@link BlockFraming} blocks, either on the calling
+ * thread or on a dedicated thread that stays up to {@link #READ_AHEAD}
+ * blocks ahead of the caller. Block buffers are recycled, so a steady state
+ * read allocates nothing here.
+ */
+final class BlockInput implements Closeable {
+
+    static final int READ_AHEAD = 2;
+
+    private static final ThreadFactory THREADS =
+            new ThreadFactoryBuilder().setNameFormat("DataChannelBlockReader-%d").setDaemon(true).build();
+
+    /** a decompressed block of length prefixed records */
+    static final class Block {
+
+        byte[] data = new byte[0];
+        int length;
+        int count;
+        private byte[] stored = new byte[0];
+    }
+
+    private static final Object END = new Object();
+
+    private final InputStream in;
+    private final BlockCodec codec;
+    private final Thread thread;
+    private final BlockingQueue<Object> ready;
+    private final BlockingQueue<Block> free;
+    private Block current;
+    private IOException failure;
+    private volatile boolean closed;
+
+    BlockInput(InputStream in, BlockFraming framing, boolean background) {
+        this.in = in;
+        this.codec = framing.getCodec();
+        if (background) {
+            // one block held by the caller, READ_AHEAD in flight, room for the end marker
+            ready = new ArrayBlockingQueue<>(READ_AHEAD + 2);
+            free = new ArrayBlockingQueue<>(READ_AHEAD + 1);
+            for (int i = 0; i < READ_AHEAD + 1; i++) {
+                free.add(new Block());
+            }
+            thread = THREADS.newThread(this::readLoop);
+            thread.start();
+        } else {
+            ready = null;
+            free = null;
+            thread = null;
+        }
+    }
+
+    /**
+     * @return the next block or null at the end of the stream. the previous
+     * block returned is recycled and must no longer be used.
+     */
+    Block next() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (thread == null) {
+            if (current == null) {
+                current = new Block();
+            }
+            return readBlock(current) ? current : null;
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        Object item;
+        try {
+            item = ready.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for next block");
+        }
+        if (item == END) {
+            ready.add(END);
+            return null;
+        }
+        if (item instanceof Throwable) {
+            Throwable cause = (Throwable) item;
+            failure = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+            throw failure;
+        }
+        current = (Block) item;
+        return current;
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                Block block = free.take();
+                if (!readBlock(block)) {
+                    ready.put(END);
+                    return;
+                }
+                ready.put(block);
+            }
+        } catch (InterruptedException ignored) {
+            // closed
+        } catch (Throwable ex) {
+            if (!closed) {
+                ready.offer(ex);
+            }
+        }
+    }
+
+    /** @return false at a clean end of stream */
+    private boolean readBlock(Block block) throws IOException {
+        int codecId = in.read();
+        if (codecId < 0) {
+            return false;
+        }
+        int count = readBlockLength(in, "record count");
+        int rawLength = readBlockLength(in, "raw length");
+        int storedLength = readBlockLength(in, "stored length");
+        // every record has at least a length prefix
+        if (count > rawLength) {
+            throw new IOException("block of " + rawLength + " bytes declares " + count + " records");
+        }
+        block.count = count;
+        if (block.data.length < rawLength) {
+            block.data = new byte[rawLength];
+        }
+        if (codecId == 0) {
+            if (storedLength != rawLength) {
+                throw new IOException("stored block length " + storedLength + " != raw length " + rawLength);
+            }
+            LessBytes.readBytes(in, block.data, 0, rawLength);
+        } else if (codecId == codec.id()) {
+            if (block.stored.length < storedLength) {
+                block.stored = new byte[storedLength];
+            }
+            LessBytes.readBytes(in, block.stored, 0, storedLength);
+            int decoded = codec.decompress(block.stored, storedLength, block.data, rawLength);
+            if (decoded != rawLength) {
+                throw new IOException("block decoded to " + decoded + " bytes, expected " + rawLength);
+            }
+        } else {
+            throw new IOException("block codec id " + codecId + " does not match " + codec);
+        }
+        block.length = rawLength;
+        return true;
+    }
+
+    private static int readBlockLength(InputStream in, String name) throws IOException {
+        long length = LessBytes.readLength(in);
+        if ((length < 0) || (length > Integer.MAX_VALUE - 8)) {
+            throw new IOException("invalid block " + name + " " + length);
+        }
+        return (int) length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        in.close();
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An unsynchronized InputStream over a range of a ByteBuffer that can be
+ * repointed without allocating. Reads use absolute indexes, so the buffer's
+ * position only moves during bulk reads.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+
+    /** read {@code length} bytes of {@code buf} starting at index {@code offset} */
+    void reset(ByteBuffer buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /** index in the buffer of the next byte to be read */
+    int offset() {
+        return pos;
+    }
+
+    @Override
+    public int read() {
+        return (pos < limit) ? (buf.get(pos++) & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= limit) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        buf.position(pos);
+        buf.get(b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, limit - pos));
+        pos += (int) skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+}
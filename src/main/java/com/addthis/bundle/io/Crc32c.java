@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksums. Uses {@code java.util.zip.CRC32C}, which
+ * the JIT compiles to hardware CRC instructions, when the running JDK has it
+ * and otherwise a slicing-by-8 table implementation.
+ */
+final class Crc32c {
+
+    private static final MethodHandle JDK_CONSTRUCTOR = jdkConstructor();
+
+    private Crc32c() {
+    }
+
+    /** a new checksum, not thread safe */
+    static Checksum create() {
+        if (JDK_CONSTRUCTOR != null) {
+            try {
+                return (Checksum) JDK_CONSTRUCTOR.invoke();
+            } catch (Throwable ignored) {
+                // fall through to the table implementation
+            }
+        }
+        return new TableCrc32c();
+    }
+
+    private static MethodHandle jdkConstructor() {
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            return null;
+        }
+    }
+
+    static final class TableCrc32c implements Checksum {
+
+        private static final int[][] TABLES = tables();
+
+        private int crc = 0xffffffff;
+
+        private static int[][] tables() {
+            int[][] tables = new int[8][256];
+            for (int i = 0; i < 256; i++) {
+                int c = i;
+                for (int k = 0; k < 8; k++) {
+                    c = ((c & 1) != 0) ? ((c >>> 1) ^ 0x82f63b78) : (c >>> 1);
+                }
+                tables[0][i] = c;
+            }
+            for (int i = 0; i < 256; i++) {
+                for (int t = 1; t < 8; t++) {
+                    tables[t][i] = (tables[t - 1][i] >>> 8) ^ tables[0][tables[t - 1][i] & 0xff];
+                }
+            }
+            return tables;
+        }
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int[][] t = TABLES;
+            int c = crc;
+            int end = off + len;
+            for (; off + 8 <= end; off += 8) {
+                int lo = c ^ ((b[off] & 0xff) | ((b[off + 1] & 0xff) << 8)
+                              | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24));
+                c = t[7][lo & 0xff] ^ t[6][(lo >>> 8) & 0xff] ^ t[5][(lo >>> 16) & 0xff] ^ t[4][lo >>> 24]
+                    ^ t[3][b[off + 4] & 0xff] ^ t[2][b[off + 5] & 0xff]
+                    ^ t[1][b[off + 6] & 0xff] ^ t[0][b[off + 7] & 0xff];
+            }
+            for (; off < end; off++) {
+                c = (c >>> 8) ^ t[0][(c ^ b[off]) & 0xff];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xffffffffL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xffffffff;
+        }
+    }
+}
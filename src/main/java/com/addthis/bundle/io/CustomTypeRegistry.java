@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import com.addthis.bundle.value.DirectValueCustom;
+import com.addthis.bundle.value.ValueCustom;
+
+import com.google.common.base.Throwables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Stable numeric ids for {@link ValueCustom} classes. {@link DataChannelCodec}
+ * writes a value of a registered class as its id instead of defining the
+ * class by name in the stream, and creates instances with the registered
+ * factory instead of reflection. Values that implement
+ * {@link DirectValueCustom} are written in their own binary form.
+ * <p/>
+ * Writers and readers must register the same classes under the same ids,
+ * typically at startup in {@link #getDefault()}. A separate registry can be
+ * given to a stream state with
+ * {@link DataChannelCodec.StreamState#setCustomTypes(CustomTypeRegistry)}.
+ * Ids are never reused for another class, so data written with an id stays
+ * readable.
+ */
+public final class CustomTypeRegistry {
+
+    private static final CustomTypeRegistry DEFAULT = new CustomTypeRegistry();
+
+    /** public no-arg constructors of unregistered classes, for stream defined classes */
+    private static final ClassValue<Supplier<ValueCustom>> CONSTRUCTORS = new ClassValue<Supplier<ValueCustom>>() {
+        @Override protected Supplier<ValueCustom> computeValue(Class<?> type) {
+            try {
+                return constructorOf(type);
+            } catch (IllegalArgumentException ex) {
+                return () -> {
+                    throw new IllegalArgumentException(ex.getMessage(), ex.getCause());
+                };
+            }
+        }
+    };
+
+    private final ConcurrentMap<Integer, Entry> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Entry> byType = new ConcurrentHashMap<>();
+
+    /** the registry used by {@link DataChannelCodec} unless a stream state sets another */
+    public static CustomTypeRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * register type under id, created by its public no-arg constructor
+     *
+     * @throws IllegalArgumentException if type has no public no-arg
+     *                                  constructor or id or type is
+     *                                  registered to another
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ValueCustom> void register(int id, Class<T> type) {
+        register(id, type, (Supplier<? extends T>) (Supplier<?>) constructorOf(checkNotNull(type)));
+    }
+
+    /**
+     * register type under id, created by factory. registering the same type
+     * under the same id again replaces the factory.
+     *
+     * @throws IllegalArgumentException if id or type is registered to another
+     */
+    public synchronized <T extends ValueCustom> void register(int id, Class<T> type, Supplier<? extends T> factory) {
+        checkArgument(id >= 0, "id must not be negative: %s", id);
+        checkNotNull(type);
+        checkNotNull(factory);
+        Entry previous = byId.get(id);
+        checkArgument((previous == null) || (previous.type == type), "id %s is registered to %s", id, previous);
+        Entry other = byType.get(type);
+        checkArgument((other == null) || (other.id == id), "%s is registered as %s", type, other);
+        @SuppressWarnings("unchecked") Entry entry = new Entry(id, type, (Supplier<ValueCustom>) factory);
+        byId.put(id, entry);
+        byType.put(type, entry);
+    }
+
+    /** @return id of type or -1 if it is not registered */
+    public int idOf(Class<?> type) {
+        Entry entry = byType.get(type);
+        return (entry != null) ? entry.id : -1;
+    }
+
+    /** @return class registered as id or null if none */
+    public Class<? extends ValueCustom> typeOf(int id) {
+        Entry entry = byId.get(id);
+        return (entry != null) ? entry.type : null;
+    }
+
+    /** @return a new instance of the class registered as id or null if none */
+    public ValueCustom create(int id) {
+        Entry entry = byId.get(id);
+        return (entry != null) ? entry.factory.get() : null;
+    }
+
+    /** a new instance of type from its cached public no-arg constructor */
+    static ValueCustom newInstance(Class<?> type) {
+        return CONSTRUCTORS.get(type).get();
+    }
+
+    /** @throws IllegalArgumentException if type has no usable public no-arg constructor */
+    private static Supplier<ValueCustom> constructorOf(Class<?> type) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflectConstructor(type.getConstructor());
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            throw new IllegalArgumentException("no usable public no-arg constructor for " + type, ex);
+        }
+        return () -> {
+            try {
+                return (ValueCustom) handle.invoke();
+            } catch (Throwable t) {
+                Throwables.throwIfUnchecked(t);
+                throw new RuntimeException(t);
+            }
+        };
+    }
+
+    private static final class Entry {
+
+        final int id;
+        final Class<? extends ValueCustom> type;
+        final Supplier<ValueCustom> factory;
+
+        Entry(int id, Class<? extends ValueCustom> type, Supplier<ValueCustom> factory) {
+            this.id = id;
+            this.type = type;
+            this.factory = factory;
+        }
+
+        @Override public String toString() {
+            return id + "=" + type.getName();
+        }
+    }
+}
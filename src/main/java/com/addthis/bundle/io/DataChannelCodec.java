@@ -13,55 +13,103 @@
  */
 package com.addthis.bundle.io;
 
+import javax.annotation.Nullable;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import java.util.HashMap;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import com.addthis.basis.util.LessBytes;
 
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
 import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.index.IndexBundle;
+import com.addthis.bundle.core.index.IndexBundleFormat;
 import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.value.DirectValueCustom;
+import com.addthis.bundle.value.DoubleValueArray;
+import com.addthis.bundle.value.LongValueArray;
 import com.addthis.bundle.value.ValueArray;
 import com.addthis.bundle.value.ValueCustom;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueMap;
 import com.addthis.bundle.value.ValueMapEntry;
 import com.addthis.bundle.value.ValueObject;
+import com.addthis.bundle.value.ValueString;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * A utility for creating/consuming binary encodings of DataTable to/from
  * streams.
  * <p/>
- * TODO need a mid-stream dictionary reset detector/switch
+ * Bundles with an {@link IndexBundleFormat} have no field names. They are
+ * written as positional rows of field count, presence bitmap and values by
+ * position, and decode into any bundle whose format has enough fields.
+ * <p/>
+ * Arrays whose elements are all longs or all doubles are packed without a
+ * tag per element and decode into a {@link LongValueArray} or
+ * {@link DoubleValueArray} backed by a primitive array.
+ * <p/>
+ * Custom values whose class is registered in the stream state's
+ * {@link CustomTypeRegistry}, the {@link CustomTypeRegistry#getDefault()
+ * default registry} unless set otherwise, are written with its id instead
+ * of a stream class definition. Registered
+ * {@link DirectValueCustom} values are written as their own length prefixed
+ * binary form instead of a ValueMap.
+ * <p/>
+ * Stream dictionaries are reset mid-stream with a BUNDLE_INIT, which a
+ * {@link DataChannelWriter} emits according to its
+ * {@link DictionaryResetPolicy}.
  */
 public final class DataChannelCodec {
 
     private static final Logger log = LoggerFactory.getLogger(DataChannelCodec.class);
 
-    private static final HashMap<Integer, TYPE> typeMap = new HashMap<>();
+    /** tag byte to type, null for unassigned tags */
+    private static final TYPE[] typeArray = new TYPE[256];
     private static final TYPE bundleTypeInit = TYPE.BUNDLE_INIT;
     private static final TYPE bundleTypeStart = TYPE.BUNDLE_START;
     private static final FieldIndexMap FIMNull = new FIMNull();
     private static final ClassIndexMap CIMNull = new CIMNull();
+    private static final ValueIndexMap VIMNull = new VIMNull();
 
     private static enum TYPE {
         NULL(0), STRING(1), BYTES(2), LONG(3), LONG_NEG(4), LONG_BIG(5),
         DOUBLE(6), ARRAY(7), MAP(8), CUSTOM_INDEX(9), CUSTOM_CLASS(10),
-        BUNDLE_INIT(11), BUNDLE_START(12), BUNDLE_FIELD_INDEX(13), BUNDLE_FIELD_NAME(14), BUNDLE_END(15);
+        BUNDLE_INIT(11), BUNDLE_START(12), BUNDLE_FIELD_INDEX(13), BUNDLE_FIELD_NAME(14), BUNDLE_END(15),
+        STRING_DEFINE(16), STRING_INDEX(17), LONG_DELTA(18), BUNDLE_SCHEMA(19), BUNDLE_ROW(20),
+        BUNDLE_POSITIONAL(21), ARRAY_LONG(22), ARRAY_DOUBLE(23), CUSTOM_REGISTERED(24), CUSTOM_DIRECT(25);
 
         private final int val;
 
         TYPE(final int val) {
             this.val = val;
-            typeMap.put(val, this);
+            typeArray[val] = this;
         }
 
         @Override
@@ -70,6 +118,23 @@ public final class DataChannelCodec {
         }
     }
 
+    /** field plan bits: planned, value kept in the bundle, predicate slot + 1 */
+    private static final int PLAN_KNOWN = 1;
+    private static final int PLAN_KEEP = 2;
+    private static final int PLAN_SLOT_SHIFT = 2;
+
+    /** smallest homogeneous array written as ARRAY_LONG or ARRAY_DOUBLE */
+    private static final int MIN_PACKED_ARRAY = 2;
+    /** ARRAY_LONG element encodings */
+    private static final int PACKED_ZIGZAG = 0;
+    private static final int PACKED_DELTA = 1;
+
+    /** tag bytes for code in this package that walks encoded bundles */
+    static final int TAG_BUNDLE_INIT = TYPE.BUNDLE_INIT.val;
+    static final int TAG_BUNDLE_START = TYPE.BUNDLE_START.val;
+    static final int TAG_BUNDLE_FIELD_NAME = TYPE.BUNDLE_FIELD_NAME.val;
+    static final int TAG_BUNDLE_END = TYPE.BUNDLE_END.val;
+
     /** */
     public static interface ObjectIndexMap<T> {
 
@@ -98,6 +163,34 @@ public final class DataChannelCodec {
          */
         public int size();
 
+        /**
+         * unboxed {@link #getObjectIndex(Object)}. implementations should
+         * override the int methods, which the codec uses on every value.
+         *
+         * @return index or -1 if none exists
+         */
+        public default int indexOf(T type) {
+            Integer index = getObjectIndex(type);
+            return (index != null) ? index : -1;
+        }
+
+        /**
+         * unboxed {@link #createObjectIndex(Object)}
+         *
+         * @return index or -1 if no index was created
+         */
+        public default int createIndex(T type) {
+            Integer index = createObjectIndex(type);
+            return (index != null) ? index : -1;
+        }
+
+        /**
+         * unboxed {@link #getObject(Integer)}
+         */
+        public default T objectAt(int index) {
+            return getObject(index);
+        }
+
         /**
          * reset map state
          */
@@ -112,6 +205,244 @@ public final class DataChannelCodec {
 
     }
 
+    /**
+     * string value dictionary. a bounded map returns null from
+     * createObjectIndex once full and the value is then written in full.
+     */
+    public static interface ValueIndexMap extends ObjectIndexMap<ValueString> {
+
+    }
+
+    /**
+     * Dictionaries for one side of a stream. A writer and the reader of its
+     * output each keep their own instance, and both are reset together when
+     * a BUNDLE_INIT is written or read.
+     * <p/>
+     * With {@code deltaLongs} set, an integer field value is written as a
+     * zigzag varint delta from the same field's integer value in an earlier
+     * bundle whenever that is shorter than the absolute encoding. Decoders
+     * track previous values regardless of this flag.
+     * <p/>
+     * With {@code schemaRows} set, an encoder declares the ordered fields of
+     * a bundle's format once in a BUNDLE_SCHEMA block and writes each bundle
+     * as a BUNDLE_ROW: a presence bitmap followed by the non-null values in
+     * schema order, with no per field tags. A new schema is declared when
+     * the format or its {@link BundleFormat#getVersion()} changes, so every
+     * field of a bundle must belong to its format. Bundles whose format is its
+     * own version, such as a MapBundle, are written with tagged fields since
+     * their fields can change without a new version. Decoders accept schema
+     * rows regardless of this flag.
+     */
+    public static final class StreamState {
+
+        /** shared empty scratch arrays, so a state costs nothing until it grows */
+        private static final byte[] NO_BYTES = {};
+        private static final ValueObject[] NO_VALUES = {};
+        private static final long[] NO_LONGS = {};
+        private static final boolean[] NO_BOOLEANS = {};
+        private static final int[] NO_INTS = {};
+
+        private final FieldIndexMap fieldMap;
+        private final ClassIndexMap classMap;
+        private final ValueIndexMap valueMap;
+        private final boolean deltaLongs;
+        private final boolean schemaRows;
+        /** current schema: fields in row order and their stream field indexes */
+        private BundleField[] schemaFields;
+        private int[] schemaIndexes;
+        private BundleFormat schemaFormat;
+        private Object schemaVersion;
+        private byte[] presence = NO_BYTES;
+        private ValueObject[] rowValues = NO_VALUES;
+        private long[] previousLongs = NO_LONGS;
+        /** scratch for the binary form of {@link DirectValueCustom} values */
+        private ReusableByteArrayOutputStream customOutput;
+        private ReusableByteArrayInputStream customInput;
+        private byte[] customBytes = NO_BYTES;
+        private boolean[] hasPreviousLong = NO_BOOLEANS;
+        /** per field index: 0 unknown, else a PLAN_ value for {@link #projection} and {@link #filter} */
+        private int[] plans = NO_INTS;
+        private Set<String> projection;
+        private FieldFilter filter;
+        private CustomTypeRegistry customTypes = CustomTypeRegistry.getDefault();
+
+        public StreamState(FieldIndexMap fieldMap, ClassIndexMap classMap, ValueIndexMap valueMap) {
+            this(fieldMap, classMap, valueMap, false);
+        }
+
+        public StreamState(FieldIndexMap fieldMap, ClassIndexMap classMap, ValueIndexMap valueMap,
+                           boolean deltaLongs) {
+            this(fieldMap, classMap, valueMap, deltaLongs, false);
+        }
+
+        public StreamState(FieldIndexMap fieldMap, ClassIndexMap classMap, ValueIndexMap valueMap,
+                           boolean deltaLongs, boolean schemaRows) {
+            this.fieldMap = fieldMap;
+            this.classMap = classMap;
+            this.valueMap = valueMap;
+            this.deltaLongs = deltaLongs;
+            this.schemaRows = schemaRows;
+        }
+
+        public FieldIndexMap getFieldMap() {
+            return fieldMap;
+        }
+
+        public ClassIndexMap getClassMap() {
+            return classMap;
+        }
+
+        public ValueIndexMap getValueMap() {
+            return valueMap;
+        }
+
+        public boolean isDeltaLongs() {
+            return deltaLongs;
+        }
+
+        public boolean isSchemaRows() {
+            return schemaRows;
+        }
+
+        /** registered custom types, {@link CustomTypeRegistry#getDefault()} by default */
+        public CustomTypeRegistry getCustomTypes() {
+            return customTypes;
+        }
+
+        /** custom types to write and read by id, which writer and reader states must agree on */
+        public void setCustomTypes(CustomTypeRegistry customTypes) {
+            this.customTypes = checkNotNull(customTypes);
+        }
+
+        /** make fields and their stream indexes the current row schema */
+        void setSchema(BundleField[] fields, int[] indexes, BundleFormat format, Object version) {
+            schemaFields = fields;
+            schemaIndexes = indexes;
+            schemaFormat = format;
+            schemaVersion = version;
+            presence(fields.length);
+            rowValues(fields.length);
+        }
+
+        /** scratch presence bitmap for rows of up to fields fields */
+        byte[] presence(int fields) {
+            if (presence.length < ((fields + 7) >>> 3)) {
+                presence = new byte[(fields + 7) >>> 3];
+            }
+            return presence;
+        }
+
+        /** scratch values for rows of up to fields fields, all null */
+        ValueObject[] rowValues(int fields) {
+            if (rowValues.length < fields) {
+                rowValues = new ValueObject[fields];
+            }
+            return rowValues;
+        }
+
+        ReusableByteArrayOutputStream customOutput() {
+            if (customOutput == null) {
+                customOutput = new ReusableByteArrayOutputStream();
+            }
+            return customOutput;
+        }
+
+        ReusableByteArrayInputStream customInput() {
+            if (customInput == null) {
+                customInput = new ReusableByteArrayInputStream();
+            }
+            return customInput;
+        }
+
+        byte[] customBytes(int length) {
+            if (customBytes.length < length) {
+                customBytes = new byte[Math.max(length, customBytes.length * 2)];
+            }
+            return customBytes;
+        }
+
+        boolean hasPreviousLong(int fieldIndex) {
+            return (fieldIndex < hasPreviousLong.length) && hasPreviousLong[fieldIndex];
+        }
+
+        long previousLong(int fieldIndex) {
+            return (fieldIndex < previousLongs.length) ? previousLongs[fieldIndex] : 0;
+        }
+
+        void setPreviousLong(int fieldIndex, long value) {
+            if (fieldIndex >= previousLongs.length) {
+                int size = Math.max(fieldIndex + 1, previousLongs.length * 2);
+                previousLongs = Arrays.copyOf(previousLongs, size);
+                hasPreviousLong = Arrays.copyOf(hasPreviousLong, size);
+            }
+            previousLongs[fieldIndex] = value;
+            hasPreviousLong[fieldIndex] = true;
+        }
+
+        /** entries defined in all dictionaries since creation or the last reset */
+        int dictionarySize() {
+            return fieldMap.size() + classMap.size() + valueMap.size();
+        }
+
+        /**
+         * true if nothing has been defined since creation or the last reset.
+         * a declared schema counts even when it has no fields.
+         */
+        public boolean isEmpty() {
+            return fieldMap.size() == 0 && classMap.size() == 0 && valueMap.size() == 0 && schemaFields == null;
+        }
+
+        public void reset() {
+            fieldMap.reset();
+            classMap.reset();
+            valueMap.reset();
+            Arrays.fill(hasPreviousLong, false);
+            Arrays.fill(plans, 0);
+            schemaFields = null;
+            schemaIndexes = null;
+            schemaFormat = null;
+            schemaVersion = null;
+        }
+
+        /**
+         * how to decode a field under a projection and filter, cached by
+         * stream field index. stateless bundles all use index 0 and are
+         * planned every time.
+         */
+        int plan(Set<String> projection, FieldFilter filter, int fieldIndex, BundleField field) {
+            if (fieldIndex <= 0) {
+                return computePlan(projection, filter, field);
+            }
+            if ((projection != this.projection) || (filter != this.filter)) {
+                this.projection = projection;
+                this.filter = filter;
+                Arrays.fill(plans, 0);
+            }
+            if (fieldIndex >= plans.length) {
+                plans = Arrays.copyOf(plans, Math.max(fieldIndex + 1, plans.length * 2));
+            }
+            if (plans[fieldIndex] == 0) {
+                plans[fieldIndex] = computePlan(projection, filter, field);
+            }
+            return plans[fieldIndex];
+        }
+
+        private static int computePlan(Set<String> projection, FieldFilter filter, BundleField field) {
+            int plan = PLAN_KNOWN;
+            if ((projection == null) || projection.contains(field.getName())) {
+                plan |= PLAN_KEEP;
+            }
+            int slot = (filter != null) ? filter.slot(field.getName()) : -1;
+            return plan | ((slot + 1) << PLAN_SLOT_SHIFT);
+        }
+
+        @Override
+        public String toString() {
+            return "StreamState(fields=" + fieldMap + ",classes=" + classMap + ",values=" + valueMap
+                   + ",deltaLongs=" + deltaLongs + ",schemaRows=" + schemaRows + ")";
+        }
+    }
+
     /**
      * for non-persisted, transient sends/receives
      */
@@ -126,6 +457,70 @@ public final class DataChannelCodec {
         return new FIM();
     }
 
+    /**
+     * dictionary of at most maxSize string values. strings seen after the
+     * dictionary fills are written in full.
+     */
+    public static ValueIndexMap createValueIndexMap(int maxSize) {
+        return new VIM(maxSize);
+    }
+
+    /**
+     * encoder or decoder state without a value dictionary. the encoding is
+     * identical to the FieldIndexMap/ClassIndexMap methods.
+     */
+    public static StreamState createStreamState() {
+        return new StreamState(createFieldIndexMap(), createClassIndexMap(), VIMNull);
+    }
+
+    /**
+     * state for stateless encoding and decoding, which never defines or
+     * looks up dictionary entries
+     */
+    static StreamState createStatelessState() {
+        return new StreamState(FIMNull, CIMNull, VIMNull);
+    }
+
+    /** true for state from {@link #createStatelessState()} */
+    static boolean isStateless(StreamState state) {
+        return (state.fieldMap == FIMNull) && (state.classMap == CIMNull) && (state.valueMap == VIMNull);
+    }
+
+    /**
+     * encoder state that also dictionary encodes up to valueDictionarySize
+     * distinct string values per stream. decoders should use
+     * {@link #createDecoderState()}, which accepts any dictionary size.
+     */
+    public static StreamState createStreamState(int valueDictionarySize) {
+        return createStreamState(valueDictionarySize, false);
+    }
+
+    /**
+     * encoder state that may also delta encode integer fields against their
+     * value in the previous bundle. suited to timestamps and sequence ids.
+     */
+    public static StreamState createStreamState(int valueDictionarySize, boolean deltaLongs) {
+        ValueIndexMap valueMap = (valueDictionarySize > 0) ? createValueIndexMap(valueDictionarySize) : VIMNull;
+        return new StreamState(createFieldIndexMap(), createClassIndexMap(), valueMap, deltaLongs);
+    }
+
+    /**
+     * encoder state that may also write bundles as schema rows, see
+     * {@link StreamState}
+     */
+    public static StreamState createStreamState(int valueDictionarySize, boolean deltaLongs, boolean schemaRows) {
+        ValueIndexMap valueMap = (valueDictionarySize > 0) ? createValueIndexMap(valueDictionarySize) : VIMNull;
+        return new StreamState(createFieldIndexMap(), createClassIndexMap(), valueMap, deltaLongs, schemaRows);
+    }
+
+    /**
+     * decoder state that accepts streams written with or without a value
+     * dictionary. the dictionary size is bounded by the writer.
+     */
+    public static StreamState createDecoderState() {
+        return createStreamState(Integer.MAX_VALUE);
+    }
+
     /**
      * for stateless encoding
      */
@@ -146,15 +541,63 @@ public final class DataChannelCodec {
      * used in ResultDiskBacked
      */
     public static void encodeBundle(Bundle row, OutputStream out, FieldIndexMap fieldMap, ClassIndexMap classMap) throws IOException {
-        if (fieldMap.size() == 0 && classMap.size() == 0) {
-            out.write(TYPE.BUNDLE_INIT.val);
-        } else {
-            out.write(TYPE.BUNDLE_START.val);
+        encodeBundle(row, out, new StreamState(fieldMap, classMap, VIMNull));
+    }
+
+    /**
+     * encode a bundle to a stream using and updating the dictionaries in state
+     */
+    public static void encodeBundle(Bundle row, OutputStream out, StreamState state) throws IOException {
+        if ((row instanceof LazyBundle) && isStateless(state) && ((LazyBundle) row).writeEncoded(out)) {
+            return;
+        }
+        encodeRecord(row, out, state, state.isEmpty());
+    }
+
+    /**
+     * for stateless batches. the bundles share one new stream state, so
+     * field names and classes are defined once for the whole batch.
+     */
+    public static byte[] encodeBundles(Iterable<Bundle> bundles) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encodeBundles(bundles, out, createStreamState());
+        return out.toByteArray();
+    }
+
+    /**
+     * encode a batch as a bundle count followed by the bundles, using and
+     * updating the dictionaries in state. only the first bundle can start
+     * with a BUNDLE_INIT. {@link #decodeBundles(InputStream, StreamState, BundleFactory, Consumer)}
+     * reads the batch back.
+     */
+    public static void encodeBundles(Iterable<Bundle> bundles, OutputStream out, StreamState state)
+            throws IOException {
+        Collection<Bundle> batch = (bundles instanceof Collection) ? (Collection<Bundle>) bundles
+                                                                   : Lists.newArrayList(bundles);
+        LessBytes.writeLength(batch.size(), out);
+        boolean init = state.isEmpty();
+        for (Bundle row : batch) {
+            encodeRecord(row, out, state, init);
+            init = false;
+        }
+    }
+
+    private static void encodeRecord(Bundle row, OutputStream out, StreamState state, boolean init)
+            throws IOException {
+        FieldIndexMap fieldMap = state.fieldMap;
+        out.write(init ? TYPE.BUNDLE_INIT.val : TYPE.BUNDLE_START.val);
+        if (row.getFormat() instanceof IndexBundleFormat) {
+            encodePositionalRow(row, out, state);
+            return;
+        }
+        if (state.schemaRows && hasSchemaVersion(row.getFormat())) {
+            encodeSchemaRow(row, out, state);
+            return;
         }
         for (BundleField field : row) {
-            Integer fieldIndex = fieldMap.getObjectIndex(field);
-            if (fieldIndex == null) {
-                fieldIndex = fieldMap.createObjectIndex(field);
+            int fieldIndex = fieldMap.indexOf(field);
+            if (fieldIndex < 0) {
+                fieldIndex = fieldMap.createIndex(field);
                 out.write(TYPE.BUNDLE_FIELD_NAME.val);
                 LessBytes.writeLength(fieldIndex, out);
                 LessBytes.writeString(field.getName(), out);
@@ -163,15 +606,158 @@ public final class DataChannelCodec {
                 LessBytes.writeLength(fieldIndex, out);
             }
             ValueObject val = row.getValue(field);
-            encodeValue(val, out, classMap);
+            encodeValue(val, out, state, fieldIndex);
         }
         out.write(TYPE.BUNDLE_END.val);
     }
 
+    /**
+     * write a bundle whose fields have no names as its format's field count,
+     * a presence bitmap and the non-null values by position. only the class
+     * and value dictionaries of state are used.
+     */
+    private static void encodePositionalRow(Bundle row, OutputStream out, StreamState state) throws IOException {
+        BundleFormat format = row.getFormat();
+        int length = format.getFieldCount();
+        int presenceLength = (length + 7) >>> 3;
+        byte[] presence = state.presence(length);
+        ValueObject[] values = state.rowValues(length);
+        Arrays.fill(presence, 0, presenceLength, (byte) 0);
+        for (int i = 0; i < length; i++) {
+            ValueObject value = row.getValue(format.getField(i));
+            values[i] = value;
+            if (value != null) {
+                presence[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.write(TYPE.BUNDLE_POSITIONAL.val);
+        LessBytes.writeLength(length, out);
+        out.write(presence, 0, presenceLength);
+        for (int i = 0; i < length; i++) {
+            if (values[i] != null) {
+                encodeValue(values[i], out, state, -1);
+                values[i] = null;
+            }
+        }
+    }
+
+    /**
+     * true if format has a version object that is replaced whenever its fields
+     * change. formats that return themselves or null, such as a MapBundle,
+     * can change without a new version and are written with tagged fields.
+     */
+    private static boolean hasSchemaVersion(BundleFormat format) {
+        Object version = format.getVersion();
+        return (version != null) && (version != format);
+    }
+
+    /**
+     * write a schema block if the row's format changed since the last one,
+     * then the row as presence bitmap and values in schema order
+     */
+    private static void encodeSchemaRow(Bundle row, OutputStream out, StreamState state) throws IOException {
+        BundleFormat format = row.getFormat();
+        Object version = format.getVersion();
+        if ((state.schemaFormat != format) || (state.schemaVersion != version)) {
+            FieldIndexMap fieldMap = state.fieldMap;
+            BundleField[] fields = Iterables.toArray(format, BundleField.class);
+            int[] indexes = new int[fields.length];
+            out.write(TYPE.BUNDLE_SCHEMA.val);
+            LessBytes.writeLength(fields.length, out);
+            for (int i = 0; i < fields.length; i++) {
+                int fieldIndex = fieldMap.indexOf(fields[i]);
+                if (fieldIndex < 0) {
+                    fieldIndex = fieldMap.createIndex(fields[i]);
+                    LessBytes.writeLength(((long) fieldIndex << 1) | 1, out);
+                    LessBytes.writeString(fields[i].getName(), out);
+                } else {
+                    LessBytes.writeLength((long) fieldIndex << 1, out);
+                }
+                indexes[i] = fieldIndex;
+            }
+            state.setSchema(fields, indexes, format, version);
+        }
+        BundleField[] fields = state.schemaFields;
+        int[] indexes = state.schemaIndexes;
+        byte[] presence = state.presence;
+        ValueObject[] values = state.rowValues;
+        int presenceLength = (fields.length + 7) >>> 3;
+        Arrays.fill(presence, 0, presenceLength, (byte) 0);
+        for (int i = 0; i < fields.length; i++) {
+            ValueObject value = row.getValue(fields[i]);
+            values[i] = value;
+            if (value != null) {
+                presence[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.write(TYPE.BUNDLE_ROW.val);
+        out.write(presence, 0, presenceLength);
+        for (int i = 0; i < fields.length; i++) {
+            if (values[i] != null) {
+                encodeValue(values[i], out, state, indexes[i]);
+                values[i] = null;
+            }
+        }
+    }
+
+    /**
+     * encode directly into a caller supplied buffer starting at its writer
+     * index. the writer index is advanced past the encoded bundle.
+     */
+    public static void encodeBundle(Bundle row, ByteBuf out, FieldIndexMap fieldMap, ClassIndexMap classMap) throws IOException {
+        encodeBundle(row, out, new StreamState(fieldMap, classMap, VIMNull));
+    }
+
+    public static void encodeBundle(Bundle row, ByteBuf out, StreamState state) throws IOException {
+        encodeBundle(row, new ByteBufOutputStream(out), state);
+    }
+
+    /**
+     * encode directly into a caller supplied buffer starting at its position.
+     * the position is advanced past the encoded bundle. if the bundle does not
+     * fit in the remaining space the buffer position is left unchanged, but the
+     * field and class maps may already hold the new entries and must be reset
+     * before they are used again.
+     *
+     * @throws BufferOverflowException if there is not enough space remaining
+     */
+    public static void encodeBundle(Bundle row, ByteBuffer out, FieldIndexMap fieldMap, ClassIndexMap classMap) throws IOException {
+        encodeBundle(row, out, new StreamState(fieldMap, classMap, VIMNull));
+    }
+
+    public static void encodeBundle(Bundle row, ByteBuffer out, StreamState state) throws IOException {
+        ByteBuf buf = Unpooled.wrappedBuffer(out).clear();
+        try {
+            encodeBundle(row, buf, state);
+        } catch (IndexOutOfBoundsException ex) {
+            BufferOverflowException overflow = new BufferOverflowException();
+            overflow.initCause(ex);
+            throw overflow;
+        }
+        out.position(out.position() + buf.writerIndex());
+    }
+
     /**
      * encode a single value to a stream
      */
     public static void encodeValue(ValueObject val, OutputStream out, ClassIndexMap classIndex) throws IOException {
+        encodeValue(val, out, new StreamState(FIMNull, classIndex, VIMNull));
+    }
+
+    /**
+     * encode a single value to a stream using and updating the class and
+     * value dictionaries in state
+     */
+    public static void encodeValue(ValueObject val, OutputStream out, StreamState state) throws IOException {
+        encodeValue(val, out, state, -1);
+    }
+
+    /**
+     * @param fieldIndex stream index of the bundle field holding val, or -1
+     *                   for nested values, which are never delta encoded
+     */
+    private static void encodeValue(ValueObject val, OutputStream out, StreamState state, int fieldIndex)
+            throws IOException {
         if (val == null) {
             out.write(TYPE.NULL.val);
             return;
@@ -181,9 +767,26 @@ public final class DataChannelCodec {
             case CUSTOM:
                 ValueCustom custom = val.asCustom();
                 Class<? extends ValueObject> type = custom.getClass();
-                Integer classID = classIndex.getObjectIndex(type);
-                if (classID == null) {
-                    classID = classIndex.createObjectIndex(type);
+                int typeID = state.customTypes.idOf(type);
+                if (typeID >= 0) {
+                    if (custom instanceof DirectValueCustom) {
+                        out.write(TYPE.CUSTOM_DIRECT.val);
+                        LessBytes.writeLength(typeID, out);
+                        ReusableByteArrayOutputStream body = state.customOutput();
+                        body.startRecord();
+                        ((DirectValueCustom) custom).writeTo(body);
+                        body.writeRecordTo(out);
+                    } else {
+                        out.write(TYPE.CUSTOM_REGISTERED.val);
+                        LessBytes.writeLength(typeID, out);
+                        encodeValue(custom.asMap(), out, state);
+                    }
+                    break;
+                }
+                ClassIndexMap classIndex = state.classMap;
+                int classID = classIndex.indexOf(type);
+                if (classID < 0) {
+                    classID = classIndex.createIndex(type);
                     out.write(TYPE.CUSTOM_CLASS.val);
                     LessBytes.writeLength(classID, out);
                     LessBytes.writeString(type.getName(), out);
@@ -191,28 +794,53 @@ public final class DataChannelCodec {
                     out.write(TYPE.CUSTOM_INDEX.val);
                     LessBytes.writeLength(classID, out);
                 }
-                encodeValue(custom.asMap(), out, classIndex);
+                encodeValue(custom.asMap(), out, state);
                 break;
             case MAP:
                 ValueMap map = val.asMap();
                 out.write(TYPE.MAP.val);
                 LessBytes.writeLength(map.size(), out);
                 for (ValueMapEntry e : map) {
-                    encodeValue(ValueFactory.create(e.getKey()), out, classIndex);
-                    encodeValue(e.getValue(), out, classIndex);
+                    encodeValue(ValueFactory.create(e.getKey()), out, state);
+                    encodeValue(e.getValue(), out, state);
                 }
                 break;
             case ARRAY:
-                out.write(TYPE.ARRAY.val);
                 ValueArray arr = val.asArray();
+                if (arr.size() >= MIN_PACKED_ARRAY) {
+                    ValueObject.TYPE elementType = packedType(arr);
+                    if (elementType == ValueObject.TYPE.INT) {
+                        encodeLongArray(arr, out);
+                        break;
+                    }
+                    if (elementType == ValueObject.TYPE.FLOAT) {
+                        encodeDoubleArray(arr, out);
+                        break;
+                    }
+                }
+                out.write(TYPE.ARRAY.val);
                 LessBytes.writeLength(arr.size(), out);
                 for (ValueObject vo : arr) {
-                    encodeValue(vo, out, classIndex);
+                    encodeValue(vo, out, state);
                 }
                 break;
             case STRING:
-                out.write(TYPE.STRING.val);
-                LessBytes.writeString(val.asString().asNative(), out);
+                ValueString string = val.asString();
+                ValueIndexMap valueMap = state.valueMap;
+                int valueID = valueMap.indexOf(string);
+                if (valueID >= 0) {
+                    out.write(TYPE.STRING_INDEX.val);
+                    LessBytes.writeLength(valueID, out);
+                    break;
+                }
+                valueID = valueMap.createIndex(string);
+                if (valueID >= 0) {
+                    out.write(TYPE.STRING_DEFINE.val);
+                    LessBytes.writeLength(valueID, out);
+                } else {
+                    out.write(TYPE.STRING.val);
+                }
+                LessBytes.writeString(string.asNative(), out);
                 break;
             case BYTES:
                 out.write(TYPE.BYTES.val);
@@ -220,6 +848,16 @@ public final class DataChannelCodec {
                 break;
             case INT:
                 long lv = val.asLong().getLong();
+                if (state.deltaLongs && (fieldIndex > 0)) {
+                    boolean hasPrevious = state.hasPreviousLong(fieldIndex);
+                    long delta = lv - state.previousLong(fieldIndex);
+                    state.setPreviousLong(fieldIndex, lv);
+                    if (hasPrevious && (Varints.signedSize(delta) < absoluteLongSize(lv))) {
+                        out.write(TYPE.LONG_DELTA.val);
+                        Varints.writeSigned(delta, out);
+                        break;
+                    }
+                }
                 // over 2^48, direct bytes are more efficient
                 if (lv > 281474976710656L) {
                     out.write(TYPE.LONG_BIG.val);
@@ -245,6 +883,92 @@ public final class DataChannelCodec {
         }
     }
 
+    /** @return INT or FLOAT if every element of arr is of that type, else null */
+    private static ValueObject.TYPE packedType(ValueArray arr) {
+        if (arr instanceof LongValueArray) {
+            return ((LongValueArray) arr).isPacked() ? ValueObject.TYPE.INT : null;
+        }
+        if (arr instanceof DoubleValueArray) {
+            return ((DoubleValueArray) arr).isPacked() ? ValueObject.TYPE.FLOAT : null;
+        }
+        ValueObject.TYPE type = null;
+        for (ValueObject vo : arr) {
+            if (vo == null) {
+                return null;
+            }
+            ValueObject.TYPE elementType = vo.getObjectType();
+            if ((elementType != ValueObject.TYPE.INT) && (elementType != ValueObject.TYPE.FLOAT)) {
+                return null;
+            }
+            if (type == null) {
+                type = elementType;
+            } else if (type != elementType) {
+                return null;
+            }
+        }
+        return type;
+    }
+
+    private static long longAt(ValueArray arr, int index) {
+        if (arr instanceof LongValueArray) {
+            return ((LongValueArray) arr).getLong(index);
+        }
+        return arr.get(index).asLong().getLong();
+    }
+
+    /**
+     * ARRAY_LONG: length, element encoding, then each element as a zigzag
+     * varint or as a zigzag varint delta from the previous element,
+     * whichever is shorter for the whole array
+     */
+    private static void encodeLongArray(ValueArray arr, OutputStream out) throws IOException {
+        int size = arr.size();
+        long zigzagBytes = 0;
+        long deltaBytes = 0;
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            long lv = longAt(arr, i);
+            zigzagBytes += Varints.signedSize(lv);
+            deltaBytes += Varints.signedSize(lv - previous);
+            previous = lv;
+        }
+        boolean delta = deltaBytes < zigzagBytes;
+        out.write(TYPE.ARRAY_LONG.val);
+        LessBytes.writeLength(size, out);
+        out.write(delta ? PACKED_DELTA : PACKED_ZIGZAG);
+        previous = 0;
+        for (int i = 0; i < size; i++) {
+            long lv = longAt(arr, i);
+            Varints.writeSigned(delta ? (lv - previous) : lv, out);
+            previous = lv;
+        }
+    }
+
+    /** ARRAY_DOUBLE: length then the eight bytes of each element */
+    private static void encodeDoubleArray(ValueArray arr, OutputStream out) throws IOException {
+        int size = arr.size();
+        out.write(TYPE.ARRAY_DOUBLE.val);
+        LessBytes.writeLength(size, out);
+        if (arr instanceof DoubleValueArray) {
+            DoubleValueArray doubles = (DoubleValueArray) arr;
+            for (int i = 0; i < size; i++) {
+                LessBytes.writeLong(Double.doubleToLongBits(doubles.getDouble(i)), out);
+            }
+        } else {
+            for (ValueObject vo : arr) {
+                LessBytes.writeLong(Double.doubleToLongBits(vo.asDouble().getDouble()), out);
+            }
+        }
+    }
+
+    /** encoded size of lv as LONG, LONG_NEG or LONG_BIG less the type byte */
+    private static int absoluteLongSize(long lv) {
+        if (lv > 281474976710656L) {
+            return 8;
+        }
+        return Varints.unsignedSize((lv >= 0) ? lv : -lv);
+    }
+
     /**
      * for stateless decoding.  bytes MUST come from a stateless encode.
      */
@@ -259,72 +983,336 @@ public final class DataChannelCodec {
         return decodeBundle(bundle, new ByteArrayInputStream(row), fieldMap, classMap);
     }
 
+    /**
+     * decode directly from a caller supplied buffer starting at its reader
+     * index. the reader index is advanced past the decoded bundle.
+     */
+    public static Bundle decodeBundle(Bundle bundle, ByteBuf in, FieldIndexMap fieldMap, ClassIndexMap classMap) throws IOException {
+        return decodeBundle(bundle, in, new StreamState(fieldMap, classMap, VIMNull));
+    }
+
+    public static Bundle decodeBundle(Bundle bundle, ByteBuf in, StreamState state) throws IOException {
+        return decodeBundle(bundle, new ByteBufInputStream(in), state);
+    }
+
+    /**
+     * decode directly from a caller supplied buffer starting at its position.
+     * the position is advanced past the decoded bundle.
+     */
+    public static Bundle decodeBundle(Bundle bundle, ByteBuffer in, FieldIndexMap fieldMap, ClassIndexMap classMap) throws IOException {
+        return decodeBundle(bundle, in, new StreamState(fieldMap, classMap, VIMNull));
+    }
+
+    public static Bundle decodeBundle(Bundle bundle, ByteBuffer in, StreamState state) throws IOException {
+        ByteBuf buf = Unpooled.wrappedBuffer(in);
+        Bundle decoded = decodeBundle(bundle, buf, state);
+        in.position(in.position() + buf.readerIndex());
+        return decoded;
+    }
+
     /**
      * used in ResultDiskBacked
      */
     public static Bundle  decodeBundle(Bundle bundle, InputStream in, FieldIndexMap fieldMap, ClassIndexMap classMap) throws IOException {
+        return decodeBundle(bundle, in, new StreamState(fieldMap, classMap, VIMNull));
+    }
+
+    /**
+     * decode a bundle from a stream using and updating the dictionaries in state
+     */
+    public static Bundle decodeBundle(Bundle bundle, InputStream in, StreamState state) throws IOException {
+        return decodeBundle(bundle, in, state, null);
+    }
+
+    /**
+     * decode only the fields named in projection. the values of other fields
+     * are skipped without being created, but any field names, classes and
+     * strings they define are still registered in state so later bundles in
+     * the stream decode correctly. a null projection decodes every field.
+     */
+    public static Bundle decodeBundle(Bundle bundle, InputStream in, StreamState state,
+                                      @Nullable Set<String> projection) throws IOException {
+        if (!readBundleStart(in, state)) {
+            return null;
+        }
+        decodeFields(bundle, in, state, projection, null);
+        return bundle;
+    }
+
+    /**
+     * decode the next bundle if it passes filter. each predicate is tested
+     * as soon as its field is decoded and the first failure skips the rest
+     * of the bundle, which still keeps state in step with the stream. the
+     * contents of a rejected bundle are undefined. fields outside a non-null
+     * projection are skipped as in {@link #decodeBundle(Bundle, InputStream, StreamState, Set)}.
+     *
+     * @return true if the bundle passed the filter
+     * @throws EOFException at the end of the stream
+     */
+    public static boolean decodeMatching(Bundle bundle, InputStream in, StreamState state,
+                                         @Nullable Set<String> projection, FieldFilter filter) throws IOException {
+        if (!readBundleStart(in, state)) {
+            throw new EOFException();
+        }
+        return decodeFields(bundle, in, state, projection, filter);
+    }
+
+    /**
+     * decode a batch written by {@link #encodeBundles(Iterable)}
+     *
+     * @return number of bundles passed to consumer
+     */
+    public static int decodeBundles(byte[] batch, BundleFactory factory, Consumer<Bundle> consumer)
+            throws IOException {
+        ReusableByteArrayInputStream in = new ReusableByteArrayInputStream();
+        in.reset(batch, batch.length);
+        return decodeBundles(in, createDecoderState(), factory, consumer);
+    }
+
+    /**
+     * decode a batch written by {@link #encodeBundles(Iterable, OutputStream, StreamState)},
+     * passing each bundle to consumer as soon as it is decoded
+     *
+     * @return number of bundles passed to consumer
+     * @throws EOFException if the stream ends inside the batch
+     */
+    public static int decodeBundles(InputStream in, StreamState state, BundleFactory factory,
+                                    Consumer<Bundle> consumer) throws IOException {
+        long count = LessBytes.readLength(in);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("batch of " + count + " bundles exceeds maximum");
+        }
+        for (int i = 0; i < count; i++) {
+            Bundle bundle = factory.createBundle();
+            if (!readBundleStart(in, state)) {
+                throw new EOFException("batch ended after " + i + " of " + count + " bundles");
+            }
+            decodeFields(bundle, in, state, null, null);
+            consumer.accept(bundle);
+        }
+        return (int) count;
+    }
+
+    /** @return false at the end of the stream */
+    private static boolean readBundleStart(InputStream in, StreamState state) throws IOException {
         int t = in.read();
         if (t < 0) {
-            return null;
+            return false;
         }
-        TYPE type = typeMap.get(t);
+        TYPE type = typeOf(t);
         if (type == bundleTypeInit) {
             // first bundle in a stream or mid-stream for stream appends
-            fieldMap.reset();
-            classMap.reset();
+            state.reset();
         } else if (type == bundleTypeStart) {
             // normal for streams after first bundle
         } else {
             throw new IOException("type mismatch (" + t + " = " + type + ") != valid Bundle type");
         }
+        return true;
+    }
+
+    /** @return false if filter rejected the bundle */
+    private static boolean decodeFields(Bundle bundle, InputStream in, StreamState state,
+                                        @Nullable Set<String> projection, @Nullable FieldFilter filter)
+            throws IOException {
+        FieldIndexMap fieldMap = state.fieldMap;
+        boolean rejected = false;
+        long tested = 0;
         int typever = 0;
+        TYPE type = null;
         try {
             loop:
             while (true) {
                 typever = in.read();
-                switch (type = typeMap.get(typever)) {
+                type = typeOf(typever);
+                if (type == null) {
+                    throw new IOException("invalid bundle field type " + typever);
+                }
+                int fieldIndex;
+                BundleField field;
+                switch (type) {
                     case BUNDLE_FIELD_INDEX:
-                        int fi = 0;
-                        ValueObject vo = null;
-                        BundleField field;
-                        try {
-                            fi = in.read();
-                            vo = decodeValue(in, classMap);
-                            field = fieldMap.getObject(fi);
-                            bundle.setValue(field, vo);
-                        } catch (RuntimeException ex) {
-                            log.error("field index failure @ " + fi + " val=" + vo);
-                            throw ex;
+                        fieldIndex = (int) LessBytes.readLength(in);
+                        field = fieldMap.objectAt(fieldIndex);
+                        if (field == null) {
+                            throw new IOException("undefined field index " + fieldIndex);
                         }
                         break;
                     case BUNDLE_FIELD_NAME:
-                        int index = (int) LessBytes.readLength(in);
+                        fieldIndex = (int) LessBytes.readLength(in);
                         field = bundle.getFormat().getField(LessBytes.readString(in));
-                        fieldMap.setObjectIndex(index, field);
-                        bundle.setValue(field, decodeValue(in, classMap));
+                        fieldMap.setObjectIndex(fieldIndex, field);
                         break;
+                    case BUNDLE_SCHEMA:
+                        readSchema(bundle, in, state);
+                        continue;
+                    case BUNDLE_ROW:
+                        BundleField[] fields = state.schemaFields;
+                        if (fields == null) {
+                            throw new IOException("schema row without a schema");
+                        }
+                        byte[] presence = state.presence;
+                        LessBytes.readBytes(in, presence, 0, (fields.length + 7) >>> 3);
+                        for (int i = 0; i < fields.length; i++) {
+                            if ((presence[i >>> 3] & (1 << (i & 7))) == 0) {
+                                continue;
+                            }
+                            fieldIndex = state.schemaIndexes[i];
+                            if ((projection == null) && (filter == null)) {
+                                bundle.setValue(fields[i], decodeValue(in, state, fieldIndex));
+                            } else if (rejected) {
+                                skipValue(in, state, fieldIndex);
+                            } else {
+                                int slot = decodeField(bundle, in, state, projection, filter, fieldIndex, fields[i]);
+                                if (slot == REJECTED) {
+                                    rejected = true;
+                                } else if (slot >= 0) {
+                                    tested |= 1L << slot;
+                                }
+                            }
+                        }
+                        break loop;
+                    case BUNDLE_POSITIONAL:
+                        if ((projection != null) || (filter != null)) {
+                            throw new IOException("positional rows cannot be projected or filtered by field name");
+                        }
+                        decodePositionalRow(bundle, in, state);
+                        break loop;
                     case BUNDLE_END:
                         break loop;
                     default:
                         throw new IOException("type mismatch " + type + " not valid bundle field type");
                 }
+                if ((projection == null) && (filter == null)) {
+                    bundle.setValue(field, decodeValue(in, state, fieldIndex));
+                    continue;
+                }
+                if (rejected) {
+                    skipValue(in, state, fieldIndex);
+                    continue;
+                }
+                int slot = decodeField(bundle, in, state, projection, filter, fieldIndex, field);
+                if (slot == REJECTED) {
+                    rejected = true;
+                } else if (slot >= 0) {
+                    tested |= 1L << slot;
+                }
             }
         } catch (RuntimeException ex) {
             String msg = "decode error from " + in + "\n";
             msg += "  typever = " + typever + "\n";
             msg += "  type = " + type + "\n";
             msg += "  bundle = " + bundle + "\n";
-            msg += "  fields = " + fieldMap + "\n";
-            msg += "  classz = " + classMap + "\n";
+            msg += "  state = " + state + "\n";
             log.error(msg);
             throw ex;
         }
-        return bundle;
+        if (rejected) {
+            return false;
+        }
+        if (filter != null) {
+            // fields missing from the bundle are tested as null
+            for (int slot = 0; slot < filter.size(); slot++) {
+                if (((tested & (1L << slot)) == 0) && !filter.predicate(slot).test(null)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** {@link #decodeField} result when the filter rejected the bundle */
+    private static final int REJECTED = -2;
+
+    /**
+     * decode or skip one field value as planned for projection and filter
+     *
+     * @return the filter slot tested, -1 if none, or {@link #REJECTED}
+     */
+    private static int decodeField(Bundle bundle, InputStream in, StreamState state,
+                                   @Nullable Set<String> projection, @Nullable FieldFilter filter,
+                                   int fieldIndex, BundleField field) throws IOException {
+        int plan = state.plan(projection, filter, fieldIndex, field);
+        int slot = (plan >>> PLAN_SLOT_SHIFT) - 1;
+        if (slot >= 0) {
+            ValueObject value = decodeValue(in, state, fieldIndex);
+            if (!filter.predicate(slot).test(value)) {
+                return REJECTED;
+            } else if ((plan & PLAN_KEEP) != 0) {
+                bundle.setValue(field, value);
+            }
+        } else if ((plan & PLAN_KEEP) != 0) {
+            bundle.setValue(field, decodeValue(in, state, fieldIndex));
+        } else {
+            skipValue(in, state, fieldIndex);
+        }
+        return slot;
+    }
+
+    private static void decodePositionalRow(Bundle bundle, InputStream in, StreamState state) throws IOException {
+        BundleFormat format = bundle.getFormat();
+        int length = (int) LessBytes.readLength(in);
+        if (length > format.getFieldCount()) {
+            throw new IOException("positional row of " + length + " fields does not fit format of "
+                                  + format.getFieldCount());
+        }
+        byte[] presence = state.presence(length);
+        LessBytes.readBytes(in, presence, 0, (length + 7) >>> 3);
+        IndexBundle indexBundle = (bundle instanceof IndexBundle) ? (IndexBundle) bundle : null;
+        for (int i = 0; i < length; i++) {
+            if ((presence[i >>> 3] & (1 << (i & 7))) != 0) {
+                ValueObject value = decodeValue(in, state, -1);
+                if (indexBundle != null) {
+                    indexBundle.setValue(i, value);
+                } else {
+                    bundle.setValue(format.getField(i), value);
+                }
+            }
+        }
+    }
+
+    private static void readSchema(Bundle bundle, InputStream in, StreamState state) throws IOException {
+        FieldIndexMap fieldMap = state.fieldMap;
+        int count = (int) LessBytes.readLength(in);
+        BundleField[] fields = new BundleField[count];
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            long entry = LessBytes.readLength(in);
+            int fieldIndex = (int) (entry >>> 1);
+            if ((entry & 1) != 0) {
+                fields[i] = bundle.getFormat().getField(LessBytes.readString(in));
+                fieldMap.setObjectIndex(fieldIndex, fields[i]);
+            } else {
+                fields[i] = fieldMap.objectAt(fieldIndex);
+                if (fields[i] == null) {
+                    throw new IOException("undefined field index " + fieldIndex + " in schema");
+                }
+            }
+            indexes[i] = fieldIndex;
+        }
+        state.setSchema(fields, indexes, null, null);
     }
 
     public static ValueObject decodeValue(InputStream in, ClassIndexMap classMap) throws IOException {
+        return decodeValue(in, new StreamState(FIMNull, classMap, VIMNull));
+    }
+
+    /**
+     * decode a single value from a stream using and updating the class and
+     * value dictionaries in state
+     */
+    public static ValueObject decodeValue(InputStream in, StreamState state) throws IOException {
+        return decodeValue(in, state, -1);
+    }
+
+    /**
+     * @param fieldIndex stream index of the bundle field being decoded, or
+     *                   -1 for nested values
+     */
+    private static ValueObject decodeValue(InputStream in, StreamState state, int fieldIndex) throws IOException {
+        ClassIndexMap classMap = state.classMap;
         int typeInteger = in.read();
-        TYPE type = typeMap.get(typeInteger);
+        TYPE type = typeOf(typeInteger);
         if (type == null) {
             throw new IOException("Null object type, integer code is " + typeInteger);
         }
@@ -334,56 +1322,245 @@ public final class DataChannelCodec {
             case BYTES:
                 return ValueFactory.create(LessBytes.readBytes(in));
             case LONG:
-                return ValueFactory.create(LessBytes.readLength(in));
             case LONG_NEG:
-                return ValueFactory.create(-LessBytes.readLength(in));
             case LONG_BIG:
-                return ValueFactory.create(LessBytes.readLong(in));
+            case LONG_DELTA:
+                return ValueFactory.create(readLong(type, in, state, fieldIndex));
             case DOUBLE:
                 return ValueFactory.create(Double.longBitsToDouble(LessBytes.readLong(in)));
             case STRING:
                 return ValueFactory.create(LessBytes.readString(in));
+            case STRING_DEFINE:
+                int valueIndex = (int) LessBytes.readLength(in);
+                ValueString string = ValueFactory.create(LessBytes.readString(in));
+                if (state.valueMap.setObjectIndex(valueIndex, string) == null) {
+                    throw new IOException("value dictionary conflict or not enabled @ " + valueIndex);
+                }
+                return string;
+            case STRING_INDEX:
+                valueIndex = (int) LessBytes.readLength(in);
+                string = state.valueMap.objectAt(valueIndex);
+                if (string == null) {
+                    throw new IOException("undefined value dictionary index " + valueIndex);
+                }
+                return string;
             case ARRAY:
                 int len = (int) LessBytes.readLength(in);
                 ValueArray arr = ValueFactory.createArray(len);
                 for (int i = 0; i < len; i++) {
-                    arr.add(decodeValue(in, classMap));
+                    arr.add(decodeValue(in, state));
                 }
                 return arr;
+            case ARRAY_LONG:
+                return decodeLongArray(in);
+            case ARRAY_DOUBLE:
+                int doubles = (int) LessBytes.readLength(in);
+                double[] dv = new double[doubles];
+                for (int i = 0; i < doubles; i++) {
+                    dv[i] = Double.longBitsToDouble(LessBytes.readLong(in));
+                }
+                return ValueFactory.createArray(dv);
             case MAP:
                 ValueMap map = ValueFactory.createMap();
                 long count = LessBytes.readLength(in);
                 while (count-- > 0) {
-                    ValueObject key = decodeValue(in, classMap);
-                    ValueObject val = decodeValue(in, classMap);
+                    ValueObject key = decodeValue(in, state);
+                    ValueObject val = decodeValue(in, state);
                     map.put(key.toString(), val);
                 }
                 return map;
             case CUSTOM_INDEX:
-                Class<? extends ValueObject> ci = classMap.getObject((int) LessBytes.readLength(in));
-                return rehydrate(ci, in, classMap);
+                int classIndex = (int) LessBytes.readLength(in);
+                Class<? extends ValueObject> ci = classMap.objectAt(classIndex);
+                if (ci == null) {
+                    throw new IOException("undefined custom class index " + classIndex);
+                }
+                return rehydrate(ci, in, state);
             case CUSTOM_CLASS:
-                int index = (int) LessBytes.readLength(in);
-                Class<? extends ValueObject> cc;
-                try {
-                    cc = (Class<? extends ValueObject>) Class.forName(LessBytes.readString(in));
-                } catch (ClassNotFoundException e) {
-                    throw new RuntimeException(e);
+                return rehydrate(defineClass(in, classMap), in, state);
+            case CUSTOM_REGISTERED:
+                ValueCustom registered = createRegistered(in, state);
+                registered.setValues(decodeValue(in, state).asMap());
+                return registered;
+            case CUSTOM_DIRECT:
+                return readDirect(in, state);
+            default:
+                throw new RuntimeException("invalid decode type " + type);
+        }
+    }
+
+    private static LongValueArray decodeLongArray(InputStream in) throws IOException {
+        int size = (int) LessBytes.readLength(in);
+        int encoding = in.read();
+        if ((encoding != PACKED_ZIGZAG) && (encoding != PACKED_DELTA)) {
+            throw new IOException("invalid packed long encoding " + encoding);
+        }
+        long[] values = new long[size];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            long lv = Varints.readSigned(in);
+            if (encoding == PACKED_DELTA) {
+                lv += previous;
+                previous = lv;
+            }
+            values[i] = lv;
+        }
+        return ValueFactory.createArray(values);
+    }
+
+    /** @return type for a tag byte, or null for end of stream and unassigned tags */
+    private static TYPE typeOf(int tag) {
+        return ((tag >= 0) && (tag < typeArray.length)) ? typeArray[tag] : null;
+    }
+
+    /**
+     * skip over a single encoded value without creating it. string and class
+     * definitions are still registered and long field values still become
+     * the base for later deltas, so state matches a full decode.
+     *
+     * @param fieldIndex stream index of the bundle field being skipped, or
+     *                   -1 for nested values
+     */
+    static void skipValue(InputStream in, StreamState state, int fieldIndex) throws IOException {
+        int typeInteger = in.read();
+        TYPE type = typeOf(typeInteger);
+        if (type == null) {
+            throw new IOException("Null object type, integer code is " + typeInteger);
+        }
+        switch (type) {
+            case NULL:
+                break;
+            case BYTES:
+            case STRING:
+                skipFully(in, LessBytes.readLength(in));
+                break;
+            case LONG:
+            case LONG_NEG:
+            case LONG_BIG:
+            case LONG_DELTA:
+                readLong(type, in, state, fieldIndex);
+                break;
+            case DOUBLE:
+                skipFully(in, 8);
+                break;
+            case STRING_DEFINE:
+                int valueIndex = (int) LessBytes.readLength(in);
+                if (state.valueMap.setObjectIndex(valueIndex, ValueFactory.create(LessBytes.readString(in))) == null) {
+                    throw new IOException("value dictionary conflict or not enabled @ " + valueIndex);
+                }
+                break;
+            case STRING_INDEX:
+                LessBytes.readLength(in);
+                break;
+            case ARRAY:
+                long len = LessBytes.readLength(in);
+                while (len-- > 0) {
+                    skipValue(in, state, -1);
+                }
+                break;
+            case ARRAY_LONG:
+                long longs = LessBytes.readLength(in);
+                in.read();
+                while (longs-- > 0) {
+                    Varints.readUnsigned(in);
+                }
+                break;
+            case ARRAY_DOUBLE:
+                skipFully(in, LessBytes.readLength(in) * 8);
+                break;
+            case MAP:
+                long count = LessBytes.readLength(in);
+                while (count-- > 0) {
+                    skipValue(in, state, -1);
+                    skipValue(in, state, -1);
                 }
-                if (classMap.setObjectIndex(index, cc) == null) {
-                    throw new RuntimeException("index conflict for " + cc + " @ " + index);
+                break;
+            case CUSTOM_INDEX:
+                LessBytes.readLength(in);
+                skipValue(in, state, -1);
+                break;
+            case CUSTOM_CLASS:
+                defineClass(in, state.classMap);
+                skipValue(in, state, -1);
+                break;
+            case CUSTOM_REGISTERED:
+                LessBytes.readLength(in);
+                skipValue(in, state, -1);
+                break;
+            case CUSTOM_DIRECT:
+                LessBytes.readLength(in);
+                skipFully(in, LessBytes.readLength(in));
+                break;
+            default:
+                throw new IOException("invalid value type " + type);
+        }
+    }
+
+    /** InputStream.skip until n bytes are gone. unlike guava this allocates nothing */
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
                 }
-                return rehydrate(cc, in, classMap);
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * read the payload of a LONG, LONG_NEG, LONG_BIG or LONG_DELTA value.
+     * top level field values are remembered as the base for later deltas.
+     * stream field indexes start at 1 so stateless bundles are never tracked.
+     */
+    private static long readLong(TYPE type, InputStream in, StreamState state, int fieldIndex) throws IOException {
+        long value;
+        switch (type) {
+            case LONG:
+                value = LessBytes.readLength(in);
+                break;
+            case LONG_NEG:
+                value = -LessBytes.readLength(in);
+                break;
+            case LONG_BIG:
+                value = LessBytes.readLong(in);
+                break;
             default:
-                throw new RuntimeException("invalid decode type " + type);
+                if ((fieldIndex <= 0) || !state.hasPreviousLong(fieldIndex)) {
+                    throw new IOException("long delta without a previous value for field index " + fieldIndex);
+                }
+                value = state.previousLong(fieldIndex) + Varints.readSigned(in);
+                break;
+        }
+        if (fieldIndex > 0) {
+            state.setPreviousLong(fieldIndex, value);
+        }
+        return value;
+    }
+
+    /** read a CUSTOM_CLASS definition and register it in classMap */
+    @SuppressWarnings("unchecked")
+    private static Class<? extends ValueObject> defineClass(InputStream in, ClassIndexMap classMap) throws IOException {
+        int index = (int) LessBytes.readLength(in);
+        Class<? extends ValueObject> cc;
+        try {
+            cc = (Class<? extends ValueObject>) Class.forName(LessBytes.readString(in));
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        if (classMap.setObjectIndex(index, cc) == null) {
+            throw new RuntimeException("index conflict for " + cc + " @ " + index);
         }
+        return cc;
     }
 
     /** */
-    private static ValueCustom rehydrate(Class<? extends ValueObject> cc, InputStream in, ClassIndexMap classMap) {
+    private static ValueCustom rehydrate(Class<? extends ValueObject> cc, InputStream in, StreamState state) {
         try {
-            ValueCustom vc = cc.newInstance().asCustom();
-            ValueMap map = decodeValue(in, classMap).asMap();
+            ValueCustom vc = CustomTypeRegistry.newInstance(cc);
+            ValueMap map = decodeValue(in, state).asMap();
             vc.setValues(map);
             return vc;
         } catch (Exception e) {
@@ -391,8 +1568,43 @@ public final class DataChannelCodec {
         }
     }
 
+    /** read a registered type id and create an instance of its class */
+    private static ValueCustom createRegistered(InputStream in, StreamState state) throws IOException {
+        int id = (int) LessBytes.readLength(in);
+        ValueCustom custom = state.customTypes.create(id);
+        if (custom == null) {
+            throw new IOException("unregistered custom type id " + id);
+        }
+        return custom;
+    }
+
+    /** read a CUSTOM_DIRECT value, viewing the body in place when in is a record buffer */
+    private static ValueCustom readDirect(InputStream in, StreamState state) throws IOException {
+        ValueCustom custom = createRegistered(in, state);
+        if (!(custom instanceof DirectValueCustom)) {
+            throw new IOException(custom.getClass().getName() + " has no direct binary form");
+        }
+        int length = (int) LessBytes.readLength(in);
+        ReusableByteArrayInputStream body = state.customInput();
+        if (in instanceof ReusableByteArrayInputStream) {
+            ReusableByteArrayInputStream record = (ReusableByteArrayInputStream) in;
+            if (length > record.available()) {
+                throw new EOFException();
+            }
+            body.reset(record.buffer(), record.offset(), length);
+            skipFully(record, length);
+        } else {
+            byte[] bytes = state.customBytes(length);
+            LessBytes.readBytes(in, bytes, 0, length);
+            body.reset(bytes, length);
+        }
+        ((DirectValueCustom) custom).readFrom(body, length);
+        return custom;
+    }
+
     /**
-     * encode result to a stream
+     * encode result to a stream. see {@link DataTableBlockCodec} for an
+     * encoding that can be decoded in parallel.
      */
     public static void toOutputStream(DataTable result, OutputStream out) {
         ClassIndexMap classMap = createClassIndexMap();
@@ -440,64 +1652,163 @@ public final class DataChannelCodec {
                 result.append(row);
             }
         } catch (Exception ex) {
-            ex.printStackTrace();
+            throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * dense array from index to object and an open addressing table from
+     * object to index. objects are matched with equals like the HashMaps
+     * this replaced, with a reference check first.
+     */
     private static class OIM<T> implements ObjectIndexMap<T> {
 
-        private final HashMap<Integer, T> indexMap = new HashMap<>();
-        private final HashMap<T, Integer> mapIndex = new HashMap<>();
+        private Object[] objects = new Object[16];
+        private Object[] keys = new Object[32];
+        private int[] indexes = new int[32];
+        private int size;
+        private int keyCount;
 
         @Override
         public String toString() {
-            return "OIM[" + indexMap.size() + "," + mapIndex.size() + "](im=" + indexMap + ",mi=" + mapIndex + ")";
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < objects.length; i++) {
+                if (objects[i] != null) {
+                    if (sb.length() > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(i).append('=').append(objects[i]);
+                }
+            }
+            return "OIM[" + size + "](" + sb + ")";
         }
 
         @Override
         public void reset() {
-            indexMap.clear();
-            mapIndex.clear();
+            if (size > 0) {
+                Arrays.fill(objects, null);
+                Arrays.fill(keys, null);
+            }
+            size = 0;
+            keyCount = 0;
         }
 
         @Override
         public int size() {
-            return indexMap.size();
+            return size;
         }
 
         @Override
         public Integer getObjectIndex(T obj) {
-            return mapIndex.get(obj);
+            int index = indexOf(obj);
+            return (index >= 0) ? index : null;
         }
 
         @Override
         public Integer createObjectIndex(T obj) {
-            Integer index = mapIndex.get(obj);
-            if (index != null) {
-                return null;
-            }
-            index = indexMap.size() + 1;
-            indexMap.put(index, obj);
-            mapIndex.put(obj, index);
-            return index;
+            int index = createIndex(obj);
+            return (index >= 0) ? index : null;
         }
 
         @Override
         public Integer setObjectIndex(int index, T obj) {
-            if (indexMap.get(index) != null) {
+            if (index < 0) {
+                throw new IllegalArgumentException("negative map index : " + index);
+            }
+            if ((index < objects.length) && (objects[index] != null)) {
                 return null;
             }
-            indexMap.put(index, obj);
-            mapIndex.put(obj, index);
+            put(index, obj);
             return index;
         }
 
         @Override
         public T getObject(Integer index) {
-            if (index > indexMap.size()) {
-                throw new IllegalArgumentException("map index out of bounds : " + index + " > " + indexMap.size());
+            return objectAt(index);
+        }
+
+        @Override
+        public int indexOf(T obj) {
+            Object[] keys = this.keys;
+            int mask = keys.length - 1;
+            for (int slot = hash(obj) & mask; ; slot = (slot + 1) & mask) {
+                Object key = keys[slot];
+                if (key == null) {
+                    return -1;
+                }
+                if ((key == obj) || key.equals(obj)) {
+                    return indexes[slot];
+                }
+            }
+        }
+
+        @Override
+        public int createIndex(T obj) {
+            if (indexOf(obj) >= 0) {
+                return -1;
+            }
+            int index = size + 1;
+            put(index, obj);
+            return index;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T objectAt(int index) {
+            // indexes come from the stream, so out of range means corrupt input the caller reports
+            if ((index < 0) || (index > size) || (index >= objects.length)) {
+                return null;
             }
-            return indexMap.get(index);
+            return (T) objects[index];
+        }
+
+        private void put(int index, T obj) {
+            if (index >= objects.length) {
+                if (index > (objects.length * 2) + 1024) {
+                    throw new IllegalArgumentException("map index out of bounds : " + index + " > " + size);
+                }
+                objects = Arrays.copyOf(objects, Math.max(index + 1, objects.length * 2));
+            }
+            objects[index] = obj;
+            size++;
+            if ((keyCount + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = hash(obj) & mask;
+            while (keys[slot] != null) {
+                if ((keys[slot] == obj) || keys[slot].equals(obj)) {
+                    indexes[slot] = index;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = obj;
+            indexes[slot] = index;
+            keyCount++;
+        }
+
+        private void rehash(int capacity) {
+            Object[] oldKeys = keys;
+            int[] oldIndexes = indexes;
+            keys = new Object[capacity];
+            indexes = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    indexes[slot] = oldIndexes[i];
+                }
+            }
+        }
+
+        private static int hash(Object obj) {
+            int h = obj.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
         }
     }
 
@@ -527,13 +1838,68 @@ public final class DataChannelCodec {
 
         @Override
         public Integer setObjectIndex(int index, T type) {
-            return null;
+            return index;
         }
 
         @Override
         public T getObject(Integer index) {
             return null;
         }
+
+        @Override
+        public int indexOf(T type) {
+            return -1;
+        }
+
+        @Override
+        public int createIndex(T type) {
+            return 0;
+        }
+
+        @Override
+        public T objectAt(int index) {
+            return null;
+        }
+    }
+
+    /** */
+    private static final class VIM extends OIM<ValueString> implements ValueIndexMap {
+
+        private final int maxSize;
+
+        VIM(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int createIndex(ValueString obj) {
+            if (size() >= maxSize) {
+                return -1;
+            }
+            return super.createIndex(obj);
+        }
+    }
+
+    /**
+     * no dictionary: every string is written in full and dictionary tags
+     * are rejected on decode
+     */
+    private static final class VIMNull extends OIMNull<ValueString> implements ValueIndexMap {
+
+        @Override
+        public Integer createObjectIndex(ValueString type) {
+            return null;
+        }
+
+        @Override
+        public int createIndex(ValueString type) {
+            return -1;
+        }
+
+        @Override
+        public Integer setObjectIndex(int index, ValueString type) {
+            return null;
+        }
     }
 
     /** */
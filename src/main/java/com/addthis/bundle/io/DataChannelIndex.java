@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.LessBytes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Row offsets of a DataChannel file written with checkpoints. A checkpoint
+ * is a bundle before which the writer reset its dictionaries, so it starts
+ * with BUNDLE_INIT and decodes without any earlier part of the file. A writer
+ * with a checkpoint interval of N places one before every Nth bundle, and a
+ * {@link DictionaryResetPolicy} adds one at every reset it triggers. The
+ * index records the row and file offset of each checkpoint, which lets a
+ * reader seek to a row or read a range of checkpoints independently of
+ * other readers.
+ * <p/>
+ * The index is kept in a sidecar file next to the data so files without one
+ * remain readable by every existing reader. Sidecar layout, all varints:
+ * <pre>
+ * version | interval | rows | file length | checkpoints | (row delta | offset delta)*
+ * </pre>
+ */
+public final class DataChannelIndex {
+
+    static final int VERSION = 2;
+
+    /** suffix appended to the data file name */
+    public static final String SUFFIX = ".idx";
+
+    private final int interval;
+    private final long rows;
+    private final long length;
+    /** first row of each checkpoint, ascending */
+    private final long[] checkpointRows;
+    private final long[] offsets;
+
+    DataChannelIndex(int interval, long rows, long length, long[] checkpointRows, long[] offsets) {
+        checkArgument(interval >= 0, "interval must not be negative: %s", interval);
+        checkArgument(checkpointRows.length == offsets.length, "%s checkpoint rows for %s offsets",
+                      checkpointRows.length, offsets.length);
+        this.interval = interval;
+        this.rows = rows;
+        this.length = length;
+        this.checkpointRows = checkpointRows;
+        this.offsets = offsets;
+    }
+
+    /** bundles between fixed interval checkpoints, or 0 if there are none */
+    public int getInterval() {
+        return interval;
+    }
+
+    /** bundles in the file */
+    public long getRowCount() {
+        return rows;
+    }
+
+    /** bytes in the file */
+    public long getLength() {
+        return length;
+    }
+
+    public int getCheckpointCount() {
+        return offsets.length;
+    }
+
+    /** first row of a checkpoint */
+    public long getRow(int checkpoint) {
+        return checkpointRows[checkpoint];
+    }
+
+    /** file offset of a checkpoint, which holds row {@link #getRow(int)} */
+    public long getOffset(int checkpoint) {
+        return offsets[checkpoint];
+    }
+
+    /** file offset where the records of a checkpoint end */
+    public long getEndOffset(int checkpoint) {
+        return (checkpoint + 1 < offsets.length) ? offsets[checkpoint + 1] : length;
+    }
+
+    /** checkpoint at or before a row */
+    public int checkpointFor(long row) {
+        checkArgument((row >= 0) && (row < rows), "row %s out of range [0, %s)", row, rows);
+        int found = Arrays.binarySearch(checkpointRows, row);
+        return (found >= 0) ? found : (-found - 2);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        LessBytes.writeLength(VERSION, out);
+        LessBytes.writeLength(interval, out);
+        LessBytes.writeLength(rows, out);
+        LessBytes.writeLength(length, out);
+        LessBytes.writeLength(offsets.length, out);
+        long previousRow = 0;
+        long previous = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            LessBytes.writeLength(checkpointRows[i] - previousRow, out);
+            LessBytes.writeLength(offsets[i] - previous, out);
+            previousRow = checkpointRows[i];
+            previous = offsets[i];
+        }
+    }
+
+    public static DataChannelIndex readFrom(InputStream in) throws IOException {
+        long version = LessBytes.readLength(in);
+        if (version != VERSION) {
+            throw new IOException("unsupported index version " + version);
+        }
+        long interval = LessBytes.readLength(in);
+        if ((interval < 0) || (interval > Integer.MAX_VALUE)) {
+            throw new IOException("invalid checkpoint interval " + interval);
+        }
+        long rows = LessBytes.readLength(in);
+        long length = LessBytes.readLength(in);
+        long count = LessBytes.readLength(in);
+        if ((rows < 0) || (length < 0) || (count > Integer.MAX_VALUE - 8) || (count > Math.max(rows, 1))) {
+            throw new IOException("index has " + count + " checkpoints for " + rows + " rows every " + interval);
+        }
+        long[] checkpointRows = new long[(int) count];
+        long[] offsets = new long[(int) count];
+        long previousRow = 0;
+        long previous = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            checkpointRows[i] = previousRow + LessBytes.readLength(in);
+            if ((checkpointRows[i] < previousRow) || ((i > 0) && (checkpointRows[i] == previousRow))
+                    || ((i == 0) && (checkpointRows[i] != 0)) || (checkpointRows[i] >= Math.max(rows, 1))) {
+                throw new IOException("checkpoint " + i + " at row " + checkpointRows[i] + " out of order or past "
+                                      + rows + " rows");
+            }
+            offsets[i] = previous + LessBytes.readLength(in);
+            if ((offsets[i] < previous) || (offsets[i] > length)) {
+                throw new IOException("checkpoint " + i + " at " + offsets[i] + " outside [" + previous + ", "
+                                      + length + "]");
+            }
+            previousRow = checkpointRows[i];
+            previous = offsets[i];
+        }
+        return new DataChannelIndex((int) interval, rows, length, checkpointRows, offsets);
+    }
+
+    /** sidecar index path for a data file */
+    public static Path sidecar(Path data) {
+        return Paths.get(data.toString() + SUFFIX);
+    }
+
+    public void writeSidecar(Path data) throws IOException {
+        try (OutputStream out = Files.newOutputStream(sidecar(data))) {
+            writeTo(out);
+        }
+    }
+
+    public static DataChannelIndex readSidecar(Path data) throws IOException {
+        try (InputStream in = Files.newInputStream(sidecar(data))) {
+            return readFrom(in);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DataChannelIndex(interval=" + interval + ",rows=" + rows + ",length=" + length
+               + ",checkpointRows=" + Arrays.toString(checkpointRows) + ",offsets=" + Arrays.toString(offsets) + ")";
+    }
+}
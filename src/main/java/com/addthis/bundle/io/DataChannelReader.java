@@ -13,35 +13,353 @@
  */
 package com.addthis.bundle.io;
 
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import java.util.Set;
+import java.util.zip.Checksum;
+
 import com.addthis.basis.util.LessBytes;
 
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleFactory;
-import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
-import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads length prefixed bundles as written by {@link DataChannelWriter}.
+ * Each record is read into a reusable internal buffer and decoded in place,
+ * so steady state reads allocate only the decoded bundle and its values.
+ * <p/>
+ * With {@code skipCorrupt} set, a record that fails to decode is logged and
+ * skipped using its length prefix. Later records that refer to dictionary
+ * entries defined by the skipped record may still fail or decode with the
+ * wrong field names, so this is a best effort recovery.
+ * <p/>
+ * A zero length record at the end of the stream reads as null, the end of
+ * the bundles. Anywhere else it is corrupt: {@link #read()} throws, or with
+ * {@code skipCorrupt} skips it.
+ * <p/>
+ * A reader constructed with a {@link BlockFraming} reads the block format
+ * written by a {@link DataChannelWriter} with the same framing. With
+ * {@code readAhead} set, blocks are read and decompressed on a background
+ * thread while the caller decodes the previous block.
+ * <p/>
+ * A projection limits decoding to the named fields and a {@link FieldFilter}
+ * drops bundles as soon as one of its predicates fails. Both skip the bytes
+ * of values they do not need instead of decoding them.
+ * <p/>
+ * A reader constructed with {@code checksums} reads the checksummed frames
+ * written by a {@link DataChannelWriter} with checksums and fails on a frame
+ * whose CRC-32C does not match. With {@code skipCorrupt} it instead scans
+ * forward to the next valid frame and drops records until one starts with
+ * BUNDLE_INIT, so no record is decoded against dictionaries that may be
+ * missing entries from the damaged span.
+ */
 public class DataChannelReader implements BundleReader {
 
+    private static final Logger log = LoggerFactory.getLogger(DataChannelReader.class);
+
     private final BundleFactory factory;
     private final InputStream in;
-    private final ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
-    private final FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+    private final BlockInput blocks;
+    private final boolean skipCorrupt;
+    private final Checksum checksum;
+    private final StreamState state = DataChannelCodec.createDecoderState();
+    private final ReusableByteArrayInputStream record = new ReusableByteArrayInputStream();
+    private final ReusableByteArrayInputStream block = new ReusableByteArrayInputStream();
+    private byte[] buffer = new byte[256];
+    private Set<String> projection;
+    private FieldFilter filter;
+    private long corrupt;
+    private long filtered;
+    /** records left in the current block according to its header */
+    private int blockRecords;
+    /** dropping records until the next BUNDLE_INIT after damage */
+    private boolean resync;
+    /** records read so far */
+    private long records;
+    /** offset of the next unframed record without checksums */
+    private long position;
 
     public DataChannelReader(BundleFactory factory, InputStream in) {
+        this(factory, in, false);
+    }
+
+    public DataChannelReader(BundleFactory factory, InputStream in, boolean skipCorrupt) {
+        this(factory, in, skipCorrupt, null, false);
+    }
+
+    public DataChannelReader(BundleFactory factory, InputStream in, BlockFraming framing, boolean readAhead) {
+        this(factory, in, false, framing, readAhead);
+    }
+
+    public DataChannelReader(BundleFactory factory, InputStream in, boolean skipCorrupt,
+                             BlockFraming framing, boolean readAhead) {
+        this(factory, in, skipCorrupt, framing, readAhead, false);
+    }
+
+    /**
+     * @param checksums read checksummed frames
+     */
+    public DataChannelReader(BundleFactory factory, InputStream in, boolean skipCorrupt, boolean checksums) {
+        this(factory, in, skipCorrupt, null, false, checksums);
+    }
+
+    private DataChannelReader(BundleFactory factory, InputStream in, boolean skipCorrupt,
+                              BlockFraming framing, boolean readAhead, boolean checksums) {
         this.factory = factory;
-        this.in = in;
+        // resynchronizing rereads a failed frame from its second byte, and
+        // skipping a zero length record peeks for the end of the stream
+        this.in = (skipCorrupt && !in.markSupported()) ? new BufferedInputStream(in) : in;
+        this.skipCorrupt = skipCorrupt;
+        this.checksum = checksums ? Crc32c.create() : null;
+        this.blocks = (framing != null) ? new BlockInput(in, framing, readAhead) : null;
+    }
+
+    public DataChannelReader(BundleFactory factory, ReadableByteChannel channel, boolean skipCorrupt) {
+        this(factory, new BufferedInputStream(Channels.newInputStream(channel)), skipCorrupt);
     }
 
     @Override public Bundle read() throws IOException {
-        return DataChannelCodec.decodeBundle(factory.createBundle(), LessBytes.readBytes(in), fieldMap, classMap);
+        while (true) {
+            long offset = position;
+            int length = readRecord();
+            records++;
+            if (length == 0) {
+                if (atEnd()) {
+                    return null;
+                }
+                String message = "corrupt zero-length record #" + records
+                                 + ((blocks == null) && (checksum == null) ? (" at offset " + offset) : "");
+                if (!skipCorrupt) {
+                    throw new IOException(message);
+                }
+                corrupt++;
+                log.warn("skipping {}", message);
+                continue;
+            }
+            try {
+                Bundle bundle = factory.createBundle();
+                if (filter == null) {
+                    return DataChannelCodec.decodeBundle(bundle, record, state, projection);
+                }
+                if (DataChannelCodec.decodeMatching(bundle, record, state, projection, filter)) {
+                    return bundle;
+                }
+                filtered++;
+            } catch (IOException | RuntimeException ex) {
+                if (!skipCorrupt) {
+                    throw ex;
+                }
+                corrupt++;
+                resync = checksum != null;
+                log.warn("skipping corrupt record #{} of {} bytes: {}", corrupt, length, ex.toString());
+            }
+        }
+    }
+
+    /** number of records skipped because they could not be decoded */
+    public long getCorruptCount() {
+        return corrupt;
+    }
+
+    /** decode only these fields of each bundle, or all fields if null */
+    public void setProjection(@Nullable Set<String> projection) {
+        this.projection = projection;
+    }
+
+    /** return only bundles that pass filter, or all bundles if null */
+    public void setFilter(@Nullable FieldFilter filter) {
+        this.filter = filter;
+    }
+
+    /** custom types registered by the writer, {@link CustomTypeRegistry#getDefault()} by default */
+    public void setCustomTypes(CustomTypeRegistry customTypes) {
+        state.setCustomTypes(customTypes);
+    }
+
+    /** number of records dropped by the filter */
+    public long getFilteredCount() {
+        return filtered;
+    }
+
+    /** point the record stream at the next length prefixed record */
+    private int readRecord() throws IOException {
+        if (blocks != null) {
+            return readBlockRecord();
+        }
+        if (checksum != null) {
+            return readCheckedRecord();
+        }
+        long length = LessBytes.readLength(in);
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("record length " + length + " exceeds maximum array size");
+        }
+        int size = (int) length;
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, (int) Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8))];
+        }
+        LessBytes.readBytes(in, buffer, 0, size);
+        record.reset(buffer, size);
+        position += ReusableByteArrayOutputStream.lengthPrefixSize(size) + size;
+        return size;
+    }
+
+    /** true if nothing follows the record just read. only consumes input when it is about to fail */
+    private boolean atEnd() throws IOException {
+        if (blocks != null) {
+            if ((block.available() > 0) || (blockRecords > 0)) {
+                return false;
+            }
+            BlockInput.Block next = blocks.next();
+            if (next == null) {
+                return true;
+            }
+            block.reset(next.data, next.length);
+            blockRecords = next.count;
+            return false;
+        }
+        if (!in.markSupported()) {
+            // only reached without skipCorrupt, so the record fails either way
+            return in.read() < 0;
+        }
+        in.mark(1);
+        int next = in.read();
+        in.reset();
+        return next < 0;
+    }
+
+    private int readCheckedRecord() throws IOException {
+        while (true) {
+            if (skipCorrupt) {
+                in.mark(DataChannelWriter.MAX_CHECKED_RECORD + 16);
+            }
+            int first = in.read();
+            if (first < 0) {
+                throw new EOFException();
+            }
+            int size;
+            try {
+                size = readFrame(first);
+            } catch (EOFException ex) {
+                if (!skipCorrupt) {
+                    throw new IOException("truncated checksummed frame", ex);
+                }
+                size = -1;
+            }
+            if (size < 0) {
+                if (!skipCorrupt) {
+                    throw new IOException("corrupt checksummed frame");
+                }
+                in.reset();
+                in.skip(1);
+                if (!resync) {
+                    corrupt++;
+                    resync = true;
+                    log.warn("corrupt checksummed frame #{}, resynchronizing", corrupt);
+                }
+                continue;
+            }
+            if (resync) {
+                if ((size == 0) || ((buffer[record.offset()] & 0xff) != DataChannelCodec.TAG_BUNDLE_INIT)) {
+                    corrupt++;
+                    continue;
+                }
+                resync = false;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * read the rest of a frame starting with first into the record stream
+     *
+     * @return record length or -1 if these bytes are not a valid frame
+     */
+    private int readFrame(int first) throws IOException {
+        if ((first != DataChannelWriter.SYNC_0) || (in.read() != DataChannelWriter.SYNC_1)) {
+            return -1;
+        }
+        int size = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            size |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 21) {
+                return -1;
+            }
+        }
+        if (size > DataChannelWriter.MAX_CHECKED_RECORD) {
+            return -1;
+        }
+        int prefix = ReusableByteArrayOutputStream.lengthPrefixSize(size);
+        int frame = prefix + size + DataChannelWriter.CHECKSUM_BYTES;
+        if (buffer.length < frame) {
+            buffer = new byte[Math.max(frame, buffer.length * 2)];
+        }
+        // checksum covers the canonical prefix the writer emitted
+        for (int i = 0, remaining = size; i < prefix; i++, remaining >>>= 7) {
+            buffer[i] = (byte) ((i < prefix - 1) ? ((remaining & 0x7f) | 0x80) : remaining);
+        }
+        LessBytes.readBytes(in, buffer, prefix, size + DataChannelWriter.CHECKSUM_BYTES);
+        checksum.reset();
+        checksum.update(buffer, 0, prefix + size);
+        int expected = ((buffer[prefix + size] & 0xff) << 24) | ((buffer[prefix + size + 1] & 0xff) << 16)
+                       | ((buffer[prefix + size + 2] & 0xff) << 8) | (buffer[prefix + size + 3] & 0xff);
+        if ((int) checksum.getValue() != expected) {
+            return -1;
+        }
+        record.reset(buffer, prefix, size);
+        return size;
+    }
+
+    private int readBlockRecord() throws IOException {
+        while (block.available() == 0) {
+            if (blockRecords != 0) {
+                throw new IOException("block ended " + blockRecords + " records short of its count");
+            }
+            BlockInput.Block next = blocks.next();
+            if (next == null) {
+                throw new EOFException();
+            }
+            block.reset(next.data, next.length);
+            blockRecords = next.count;
+        }
+        if (blockRecords == 0) {
+            throw new IOException("block holds more records than its count");
+        }
+        blockRecords--;
+        int size = (int) LessBytes.readLength(block);
+        if (size > block.available()) {
+            throw new IOException("record length " + size + " overruns block by " + (size - block.available()));
+        }
+        record.reset(block.buffer(), block.offset(), size);
+        block.skip(size);
+        return size;
     }
 
     @Override
     public void close() throws IOException {
-        in.close();
+        if (blocks != null) {
+            blocks.close();
+        } else {
+            in.close();
+        }
     }
 
     @Override public BundleFactory getFactory() {
@@ -16,31 +16,281 @@ package com.addthis.bundle.io;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
 import com.addthis.basis.util.LessBytes;
 
 import com.addthis.bundle.core.Bundle;
-import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
-import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+/**
+ * Writes bundles as length prefixed {@link DataChannelCodec} records. Each
+ * bundle is encoded into a reusable buffer and handed to the underlying
+ * stream, length prefix included, with a single write call.
+ * <p/>
+ * With a positive {@code valueDictionarySize} the first that many distinct
+ * string values are dictionary encoded and later repeats are written as a
+ * small index. An encoder {@link StreamState} created with {@code deltaLongs}
+ * writes integer fields as deltas from the previous bundle where shorter.
+ * {@link DataChannelReader} decodes any of these forms.
+ * <p/>
+ * With a {@link BlockFraming} records are collected into blocks of up to
+ * {@code maxBundles} records or {@code maxBytes} bytes and each block is
+ * compressed as a unit. A block that does not shrink is stored raw. Such a
+ * stream must be read by a {@link DataChannelReader} with the same framing.
+ * <p/>
+ * With a positive {@code checkpointInterval} an unframed writer resets its
+ * dictionaries every that many bundles. An unframed writer records the row
+ * and offset of every reset point, including those triggered by its
+ * {@link DictionaryResetPolicy}, and {@link #getIndex()} returns them for
+ * seeking and for reading ranges of the output in parallel.
+ * <p/>
+ * With {@code checksums} set each unframed record is written as a frame of
+ * a two byte sync marker, the length prefixed record and a CRC-32C of prefix
+ * and record. A {@link DataChannelReader} with checksums verifies every
+ * frame and with {@code skipCorrupt} resynchronizes at the next valid frame
+ * after damage. Checkpoint offsets point at the start of frames.
+ * <p/>
+ * A {@link DictionaryResetPolicy} bounds dictionary growth by resetting the
+ * dictionaries, in any of these modes, whenever one of its limits is reached.
+ * Resets inside blocks are not recorded, since a block is only readable as a
+ * whole.
+ */
 public class DataChannelWriter implements BundleWriter {
 
+    static final int SYNC_0 = 0xd7;
+    static final int SYNC_1 = 0x5a;
+    static final int CHECKSUM_BYTES = 4;
+    /** largest record in a checksummed frame, which bounds resynchronization lookahead */
+    static final int MAX_CHECKED_RECORD = 1 << 26;
+
     private final OutputStream out;
-    private final ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
-    private final FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+    private final StreamState state;
+    private final BlockFraming framing;
+    private final ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream();
+    private final ReusableByteArrayOutputStream block;
+    private final ReusableByteArrayOutputStream frame;
+    private final int checkpointInterval;
+    private final Checksum checksum;
+    private long[] checkpointRows = new long[0];
+    private long[] checkpoints = new long[0];
+    private int checkpointCount;
+    private DictionaryResetPolicy resetPolicy = DictionaryResetPolicy.NEVER;
+    private long resets;
+    private long bundlesSinceReset;
+    private long bytesSinceReset;
+    private long resetNanos = System.nanoTime();
+    private long rows;
+    private long bytes;
+    private int blockCount;
     private boolean closed = false;
 
     public DataChannelWriter(OutputStream out) {
+        this(out, 0);
+    }
+
+    public DataChannelWriter(OutputStream out, int valueDictionarySize) {
+        this(out, valueDictionarySize, null);
+    }
+
+    public DataChannelWriter(OutputStream out, int valueDictionarySize, BlockFraming framing) {
+        this(out, DataChannelCodec.createStreamState(valueDictionarySize), framing);
+    }
+
+    /**
+     * @param state   encoder state, for example from
+     *                {@link DataChannelCodec#createStreamState(int, boolean)}
+     * @param framing block framing or null to write unframed records
+     */
+    public DataChannelWriter(OutputStream out, StreamState state, BlockFraming framing) {
+        this(out, state, framing, 0, false);
+    }
+
+    /**
+     * @param checkpointInterval bundles between dictionary resets recorded
+     *                           in {@link #getIndex()}, or 0 for none
+     */
+    public DataChannelWriter(OutputStream out, StreamState state, int checkpointInterval) {
+        this(out, state, checkpointInterval, false);
+    }
+
+    /**
+     * @param checkpointInterval bundles between dictionary resets recorded
+     *                           in {@link #getIndex()}, or 0 for none
+     * @param checksums          write each record in a checksummed frame
+     */
+    public DataChannelWriter(OutputStream out, StreamState state, int checkpointInterval, boolean checksums) {
+        this(out, state, null, checkpointInterval, checksums);
+    }
+
+    private DataChannelWriter(OutputStream out, StreamState state, BlockFraming framing,
+                              int checkpointInterval, boolean checksums) {
+        checkArgument(checkpointInterval >= 0, "checkpointInterval must not be negative: %s", checkpointInterval);
         this.out = out;
+        this.state = state;
+        this.framing = framing;
+        this.checkpointInterval = checkpointInterval;
+        this.checksum = checksums ? Crc32c.create() : null;
+        if (framing != null) {
+            this.block = new ReusableByteArrayOutputStream();
+            this.frame = new ReusableByteArrayOutputStream();
+        } else {
+            this.block = null;
+            this.frame = null;
+        }
     }
 
     @Override public void write(Bundle row) throws IOException {
-        LessBytes.writeBytes(DataChannelCodec.encodeBundle(row, fieldMap, classMap), out);
+        boolean checkpoint = false;
+        if ((checkpointInterval > 0) && ((rows % checkpointInterval) == 0)) {
+            resetDictionaries();
+            checkpoint = true;
+        } else if ((bundlesSinceReset > 0) && resetPolicy.isDue(
+                bundlesSinceReset, bytesSinceReset, state.dictionarySize(),
+                resetPolicy.isTimed() ? (System.nanoTime() - resetNanos) : 0)) {
+            resetDictionaries();
+            checkpoint = true;
+        } else if ((rows == 0) && state.isEmpty()) {
+            checkpoint = true;
+        }
+        buffer.startRecord();
+        DataChannelCodec.encodeBundle(row, buffer, state);
+        int length = buffer.recordLength();
+        if ((checksum != null) && (length > MAX_CHECKED_RECORD)) {
+            // the dictionaries may hold entries from a record that is never written
+            state.reset();
+            throw new IOException("record of " + length + " bytes exceeds checksummed maximum " + MAX_CHECKED_RECORD);
+        }
+        if (checkpoint) {
+            addCheckpoint();
+        }
+        rows++;
+        bundlesSinceReset++;
+        bytesSinceReset += length;
+        if (checksum != null) {
+            bytes += writeFrame();
+            return;
+        }
+        if (framing == null) {
+            bytes += buffer.writeRecordTo(out);
+            return;
+        }
+        int start = buffer.writeLengthPrefix();
+        block.write(buffer.buffer(), start, buffer.size() - start);
+        blockCount++;
+        if ((blockCount >= framing.getMaxBundles()) || (block.size() >= framing.getMaxBytes())) {
+            flushBlock();
+        }
+    }
+
+    /** record the next record as a reset point, which only unframed output can seek to */
+    private void addCheckpoint() {
+        if (framing != null) {
+            return;
+        }
+        if (checkpointCount == checkpoints.length) {
+            int capacity = Math.max(16, checkpointCount * 2);
+            checkpointRows = Arrays.copyOf(checkpointRows, capacity);
+            checkpoints = Arrays.copyOf(checkpoints, capacity);
+        }
+        checkpointRows[checkpointCount] = rows;
+        checkpoints[checkpointCount++] = bytes;
+    }
+
+    private void resetDictionaries() {
+        if (!state.isEmpty()) {
+            state.reset();
+            resets++;
+        }
+        bundlesSinceReset = 0;
+        bytesSinceReset = 0;
+        if (resetPolicy.isTimed()) {
+            resetNanos = System.nanoTime();
+        }
+    }
+
+    /** when to reset dictionaries mid-stream, {@link DictionaryResetPolicy#NEVER} by default */
+    public void setResetPolicy(DictionaryResetPolicy resetPolicy) {
+        this.resetPolicy = checkNotNull(resetPolicy);
+        this.resetNanos = System.nanoTime();
+    }
+
+    /** number of mid-stream dictionary resets so far */
+    public long getResetCount() {
+        return resets;
+    }
+
+    private int writeFrame() throws IOException {
+        int start = buffer.writeLengthPrefix();
+        checksum.reset();
+        checksum.update(buffer.buffer(), start, buffer.size() - start);
+        int crc = (int) checksum.getValue();
+        buffer.write(crc >>> 24);
+        buffer.write(crc >>> 16);
+        buffer.write(crc >>> 8);
+        buffer.write(crc);
+        out.write(SYNC_0);
+        out.write(SYNC_1);
+        out.write(buffer.buffer(), start, buffer.size() - start);
+        return 2 + (buffer.size() - start);
+    }
+
+    /**
+     * rows and offsets of the checkpoints written so far, from the checkpoint
+     * interval and the reset policy
+     *
+     * @throws IllegalStateException if this writer uses block framing or
+     *                               started from a non-empty stream state
+     */
+    public DataChannelIndex getIndex() {
+        checkState(framing == null, "block framed output has no checkpoints");
+        checkState((rows == 0) || ((checkpointCount > 0) && (checkpointRows[0] == 0)),
+                   "output did not start from empty dictionaries");
+        return new DataChannelIndex(checkpointInterval, rows, bytes, Arrays.copyOf(checkpointRows, checkpointCount),
+                                    Arrays.copyOf(checkpoints, checkpointCount));
+    }
+
+    /** write out any partially filled block and flush the underlying stream */
+    public void flush() throws IOException {
+        flushBlock();
+        out.flush();
+    }
+
+    private void flushBlock() throws IOException {
+        if ((framing == null) || (blockCount == 0)) {
+            return;
+        }
+        int rawLength = block.size();
+        frame.reset();
+        framing.getCodec().compress(block.buffer(), rawLength, frame);
+        boolean compressed = frame.size() < rawLength;
+        byte[] stored = compressed ? frame.buffer() : block.buffer();
+        int storedLength = compressed ? frame.size() : rawLength;
+        out.write(compressed ? framing.getCodec().id() : 0);
+        LessBytes.writeLength(blockCount, out);
+        LessBytes.writeLength(rawLength, out);
+        LessBytes.writeLength(storedLength, out);
+        out.write(stored, 0, storedLength);
+        block.reset();
+        blockCount = 0;
     }
 
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
         closed = true;
-        out.close();
+        try {
+            flushBlock();
+        } finally {
+            out.close();
+        }
     }
 
     @Override public boolean isClosed() {
@@ -0,0 +1,291 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+import com.addthis.bundle.table.DataTable;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Block partitioned binary encoding of a DataTable. Rows are cut into blocks
+ * of up to {@code blockRows} rows and each block is written with its own
+ * {@link DataChannelCodec} dictionaries, so every block decodes without the
+ * others. A header lists the row count and byte length of each block which
+ * lets the decoder find every block before decoding any of them and decode
+ * them in parallel on a {@link ForkJoinPool}. Layout:
+ * <pre>
+ * version | rows | blocks | (block rows | block length)* | block bytes*
+ * </pre>
+ * Decoded rows are appended to the table in their original order on the
+ * calling thread once all blocks are done, so the table itself need not be
+ * thread safe. Its {@link DataTable#createBundle()} and format must be.
+ * <p/>
+ * Blocks are likewise encoded independently and can be encoded in parallel
+ * on an {@link Executor}. Rows must not be modified while encoding runs.
+ */
+public final class DataTableBlockCodec {
+
+    static final int VERSION = 1;
+
+    public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+    private DataTableBlockCodec() {
+    }
+
+    /**
+     * encode table to a stream in blocks of {@link #DEFAULT_BLOCK_ROWS}
+     */
+    public static void toOutputStream(DataTable table, OutputStream out) throws IOException {
+        toOutputStream(table, out, DEFAULT_BLOCK_ROWS);
+    }
+
+    /**
+     * encode table to a stream in blocks of up to blockRows rows
+     */
+    public static void toOutputStream(DataTable table, OutputStream out, int blockRows) throws IOException {
+        toOutputStream(table, out, blockRows, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * encode table to a stream in blocks of up to blockRows rows, encoding
+     * blocks on executor and writing them in order from the calling thread
+     */
+    public static void toOutputStream(DataTable table, OutputStream out, int blockRows, Executor executor)
+            throws IOException {
+        checkArgument(blockRows > 0, "blockRows must be positive: %s", blockRows);
+        List<Bundle> rows = Arrays.asList(table.toArray(new Bundle[table.size()]));
+        List<FutureTask<byte[]>> tasks = new ArrayList<>();
+        for (int from = 0; from < rows.size(); from += blockRows) {
+            List<Bundle> block = rows.subList(from, Math.min(rows.size(), from + blockRows));
+            FutureTask<byte[]> task = new FutureTask<>(() -> encodeBlock(block));
+            tasks.add(task);
+            executor.execute(task);
+        }
+        byte[][] blocks = new byte[tasks.size()][];
+        try {
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = tasks.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while encoding blocks");
+        } catch (ExecutionException ex) {
+            Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IOException(ex.getCause());
+        } finally {
+            for (FutureTask<byte[]> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        writeBlocks(rows.size(), blockRows, blocks, out);
+    }
+
+    /**
+     * encode table to bytes -- helper
+     */
+    public static byte[] toBytes(DataTable table) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        toOutputStream(table, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * encode table to bytes, encoding blocks on executor -- helper
+     */
+    public static byte[] toBytes(DataTable table, Executor executor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        toOutputStream(table, out, DEFAULT_BLOCK_ROWS, executor);
+        return out.toByteArray();
+    }
+
+    /**
+     * decode rows from bytes on the common pool and append them to table -- helper
+     */
+    public static void fromBytes(DataTable table, byte[] raw) throws IOException {
+        fromInputStream(table, new ByteArrayInputStream(raw), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * decode rows from a stream on the common pool and append them to table
+     */
+    public static void fromInputStream(DataTable table, InputStream in) throws IOException {
+        fromInputStream(table, in, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * decode rows from a stream and append them to table. blocks are read
+     * on the calling thread and decoded on pool.
+     */
+    public static void fromInputStream(DataTable table, InputStream in, ForkJoinPool pool) throws IOException {
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("unsupported block table version " + version);
+        }
+        long rows = LessBytes.readLength(in);
+        if ((rows < 0) || (rows > Integer.MAX_VALUE - 8)) {
+            throw new IOException("invalid block table row count " + rows);
+        }
+        long blocks = LessBytes.readLength(in);
+        if ((blocks < 0) || (blocks > rows)) {
+            throw new IOException("invalid block count " + blocks + " for " + rows + " rows");
+        }
+        int blockCount = (int) blocks;
+        // grown as headers are read so a corrupt count cannot force a huge allocation
+        int[] blockRows = new int[Math.min(blockCount, 1024)];
+        int[] offsets = new int[blockRows.length + 1];
+        long total = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (i == blockRows.length) {
+                blockRows = Arrays.copyOf(blockRows, (int) Math.min(blockCount, i * 2L));
+                offsets = Arrays.copyOf(offsets, blockRows.length + 1);
+            }
+            long count = LessBytes.readLength(in);
+            long length = LessBytes.readLength(in);
+            // every row takes at least one byte
+            if ((count < 0) || (length < count) || (count > rows - total)) {
+                throw new IOException("block " + i + " of " + length + " bytes declares " + count + " rows, "
+                                      + (rows - total) + " remain");
+            }
+            blockRows[i] = (int) count;
+            total += count;
+            long end = offsets[i] + length;
+            if (end > Integer.MAX_VALUE - 8) {
+                throw new IOException("block table of " + end + "+ bytes exceeds maximum array size");
+            }
+            offsets[i + 1] = (int) end;
+        }
+        if (total != rows) {
+            throw new IOException("blocks hold " + total + " rows, header declares " + rows);
+        }
+        byte[] data = new byte[offsets[blockCount]];
+        LessBytes.readBytes(in, data, 0, data.length);
+        Bundle[][] decoded = new Bundle[blockCount][];
+        try {
+            pool.invoke(new DecodeBlocks(table, data, offsets, blockRows, decoded, 0, blockCount));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        for (Bundle[] block : decoded) {
+            for (Bundle bundle : block) {
+                table.add(bundle);
+            }
+        }
+    }
+
+    /** encode rows with fresh dictionaries */
+    static byte[] encodeBlock(List<Bundle> rows) throws IOException {
+        ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream();
+        StreamState state = DataChannelCodec.createStreamState();
+        for (Bundle row : rows) {
+            DataChannelCodec.encodeBundle(row, out, state);
+        }
+        return out.toByteArray();
+    }
+
+    static void writeBlocks(int rows, int blockRows, byte[][] blocks, OutputStream out) throws IOException {
+        out.write(VERSION);
+        LessBytes.writeLength(rows, out);
+        LessBytes.writeLength(blocks.length, out);
+        for (int i = 0; i < blocks.length; i++) {
+            LessBytes.writeLength(Math.min(blockRows, rows - (i * blockRows)), out);
+            LessBytes.writeLength(blocks[i].length, out);
+        }
+        for (byte[] block : blocks) {
+            out.write(block);
+        }
+    }
+
+    private static Bundle[] decodeBlock(DataTable table, byte[] data, int block, int offset, int length, int rows)
+            throws IOException {
+        ReusableByteArrayInputStream in = new ReusableByteArrayInputStream();
+        in.reset(data, offset, length);
+        StreamState state = DataChannelCodec.createDecoderState();
+        Bundle[] bundles = new Bundle[rows];
+        for (int i = 0; i < rows; i++) {
+            bundles[i] = DataChannelCodec.decodeBundle(table.createBundle(), in, state);
+            if (bundles[i] == null) {
+                throw new IOException("block " + block + " ends at row " + i + " of " + rows);
+            }
+        }
+        if (in.available() > 0) {
+            throw new IOException(in.available() + " bytes left over after " + rows + " rows of block " + block);
+        }
+        return bundles;
+    }
+
+    /** decode blocks [from, to) by halving the range until one block is left */
+    private static final class DecodeBlocks extends RecursiveAction {
+
+        private final DataTable table;
+        private final byte[] data;
+        private final int[] offsets;
+        private final int[] blockRows;
+        private final Bundle[][] decoded;
+        private final int from;
+        private final int to;
+
+        DecodeBlocks(DataTable table, byte[] data, int[] offsets, int[] blockRows, Bundle[][] decoded,
+                     int from, int to) {
+            this.table = table;
+            this.data = data;
+            this.offsets = offsets;
+            this.blockRows = blockRows;
+            this.decoded = decoded;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeBlocks(table, data, offsets, blockRows, decoded, from, mid),
+                          new DecodeBlocks(table, data, offsets, blockRows, decoded, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                try {
+                    decoded[i] = decodeBlock(table, data, i, offsets[i], offsets[i + 1] - offsets[i], blockRows[i]);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.index.IndexBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+
+/**
+ * Column-major binary encoding of a DataTable. Where
+ * {@link DataChannelCodec#toOutputStream(DataTable, OutputStream)} writes a
+ * type byte and field index for every cell, this writes each field once
+ * followed by all of its values in a form chosen for the column:
+ * <ul>
+ * <li>all integers: zigzag varints</li>
+ * <li>all floating point: raw 8 byte doubles</li>
+ * <li>all strings: a dictionary of distinct values and a varint index per row</li>
+ * <li>anything else: {@link DataChannelCodec} values sharing one class dictionary</li>
+ * </ul>
+ * A column with missing values is preceded by a presence bitmap and only
+ * present values are written. Columns are keyed by field name, or by field
+ * position for a table with an {@link IndexBundleFormat}, whose fields have
+ * no names. Layout:
+ * <pre>
+ * version | rows | columns | positional | (name or position | kind [| bitmap] | values)*
+ * </pre>
+ * Rows are created with {@link DataTable#createBundle()} and appended once
+ * the whole table has been decoded.
+ */
+public final class DataTableColumnCodec {
+
+    static final int VERSION = 1;
+
+    private static final int KIND_EMPTY = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_DOUBLE = 2;
+    private static final int KIND_STRING = 3;
+    private static final int KIND_VALUE = 4;
+    /** or'd into the kind when a presence bitmap follows */
+    private static final int HAS_NULLS = 0x80;
+
+    private DataTableColumnCodec() {
+    }
+
+    /**
+     * encode table to a stream
+     */
+    public static void toOutputStream(DataTable table, OutputStream out) throws IOException {
+        int rows = table.size();
+        boolean positional = table.getFormat() instanceof IndexBundleFormat;
+        Map<Object, ValueObject[]> columns = collectColumns(table, positional);
+        StreamState state = DataChannelCodec.createStreamState();
+        out.write(VERSION);
+        LessBytes.writeLength(rows, out);
+        LessBytes.writeLength(columns.size(), out);
+        out.write(positional ? 1 : 0);
+        for (Map.Entry<Object, ValueObject[]> column : columns.entrySet()) {
+            if (positional) {
+                LessBytes.writeLength((Integer) column.getKey(), out);
+            } else {
+                LessBytes.writeString((String) column.getKey(), out);
+            }
+            writeColumn(column.getValue(), out, state);
+        }
+    }
+
+    /**
+     * encode table to bytes -- helper
+     */
+    public static byte[] toBytes(DataTable table) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        toOutputStream(table, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * decode rows from bytes and append them to table -- helper
+     */
+    public static void fromBytes(DataTable table, byte[] raw) throws IOException {
+        fromInputStream(table, new ByteArrayInputStream(raw));
+    }
+
+    /**
+     * decode rows from a stream and append them to table
+     */
+    public static void fromInputStream(DataTable table, InputStream in) throws IOException {
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("unsupported column table version " + version);
+        }
+        int rows = readInt(in);
+        if (rows > Integer.MAX_VALUE - 8) {
+            throw new IOException("invalid column table row count " + rows);
+        }
+        int columnCount = readInt(in);
+        int positional = in.read();
+        if ((positional != 0) && (positional != 1)) {
+            throw new IOException("invalid column key flag " + positional);
+        }
+        // rows are created once a column has been read, so a corrupt row count
+        // fails on missing column data before it can allocate that many bundles
+        Bundle[] bundles = null;
+        StreamState state = DataChannelCodec.createDecoderState();
+        for (int c = 0; c < columnCount; c++) {
+            Object key = (positional == 1) ? (Object) readInt(in) : LessBytes.readString(in);
+            ValueObject[] values = readColumn(key, rows, in, state);
+            if (values == null) {
+                continue;
+            }
+            if (bundles == null) {
+                bundles = createBundles(table, rows);
+            }
+            setColumn(key, values, bundles);
+        }
+        if (bundles == null) {
+            bundles = createBundles(table, rows);
+        }
+        for (Bundle bundle : bundles) {
+            table.add(bundle);
+        }
+    }
+
+    private static Bundle[] createBundles(DataTable table, int rows) {
+        Bundle[] bundles = new Bundle[rows];
+        for (int i = 0; i < rows; i++) {
+            bundles[i] = table.createBundle();
+        }
+        return bundles;
+    }
+
+    /** pivot rows into columns keyed by field name or position in table format order */
+    private static Map<Object, ValueObject[]> collectColumns(DataTable table, boolean positional)
+            throws IOException {
+        int rows = table.size();
+        BundleFormat format = table.getFormat();
+        Map<Object, ValueObject[]> columns = new LinkedHashMap<>();
+        BundleFormat rowFormat = null;
+        ValueObject[][] rowColumns = null;
+        BundleField[] rowFields = null;
+        int row = 0;
+        for (Bundle bundle : table) {
+            // rows normally share one format so the field binding is resolved once
+            if ((bundle.getFormat() != rowFormat) || (rowFields.length != rowFormat.getFieldCount())) {
+                rowFormat = bundle.getFormat();
+                if ((rowFormat instanceof IndexBundleFormat) != positional) {
+                    throw new IOException("table mixes positional and named rows at row " + row);
+                }
+                rowFields = new BundleField[rowFormat.getFieldCount()];
+                rowColumns = new ValueObject[rowFields.length][];
+                int i = 0;
+                for (BundleField field : rowFormat) {
+                    rowFields[i] = field;
+                    Object key = positional ? (Object) i : field.getName();
+                    rowColumns[i] = columns.computeIfAbsent(key, name -> new ValueObject[rows]);
+                    i++;
+                }
+            }
+            for (int i = 0; i < rowFields.length; i++) {
+                rowColumns[i][row] = bundle.getValue(rowFields[i]);
+            }
+            row++;
+        }
+        if (rows == 0) {
+            int i = 0;
+            for (BundleField field : format) {
+                columns.put(positional ? (Object) i : field.getName(), new ValueObject[0]);
+                i++;
+            }
+        }
+        return columns;
+    }
+
+    private static void writeColumn(ValueObject[] values, OutputStream out, StreamState state) throws IOException {
+        int kind = KIND_EMPTY;
+        boolean nulls = false;
+        for (ValueObject value : values) {
+            if (value == null) {
+                nulls = true;
+                continue;
+            }
+            int valueKind = kindOf(value);
+            if (kind == KIND_EMPTY) {
+                kind = valueKind;
+            } else if (kind != valueKind) {
+                kind = KIND_VALUE;
+            }
+        }
+        if (kind == KIND_EMPTY) {
+            out.write(KIND_EMPTY);
+            return;
+        }
+        if (nulls) {
+            out.write(kind | HAS_NULLS);
+            writePresence(values, out);
+        } else {
+            out.write(kind);
+        }
+        switch (kind) {
+            case KIND_LONG:
+                for (ValueObject value : values) {
+                    if (value != null) {
+                        Varints.writeSigned(value.asLong().getLong(), out);
+                    }
+                }
+                break;
+            case KIND_DOUBLE:
+                for (ValueObject value : values) {
+                    if (value != null) {
+                        LessBytes.writeLong(Double.doubleToLongBits(value.asDouble().getDouble()), out);
+                    }
+                }
+                break;
+            case KIND_STRING:
+                writeStrings(values, out);
+                break;
+            default:
+                for (ValueObject value : values) {
+                    if (value != null) {
+                        DataChannelCodec.encodeValue(value, out, state);
+                    }
+                }
+                break;
+        }
+    }
+
+    private static int kindOf(ValueObject value) {
+        switch (value.getObjectType()) {
+            case INT:
+                return KIND_LONG;
+            case FLOAT:
+                return KIND_DOUBLE;
+            case STRING:
+                return KIND_STRING;
+            default:
+                return KIND_VALUE;
+        }
+    }
+
+    private static void writePresence(ValueObject[] values, OutputStream out) throws IOException {
+        byte[] bitmap = new byte[(values.length + 7) >>> 3];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                bitmap[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.write(bitmap);
+    }
+
+    private static void writeStrings(ValueObject[] values, OutputStream out) throws IOException {
+        HashMap<String, Integer> dictionary = new HashMap<>();
+        List<String> distinct = new ArrayList<>();
+        int[] indexes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                String string = values[i].asString().asNative();
+                Integer index = dictionary.get(string);
+                if (index == null) {
+                    index = distinct.size();
+                    dictionary.put(string, index);
+                    distinct.add(string);
+                }
+                indexes[i] = index;
+            }
+        }
+        LessBytes.writeLength(distinct.size(), out);
+        for (String string : distinct) {
+            LessBytes.writeString(string, out);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                LessBytes.writeLength(indexes[i], out);
+            }
+        }
+    }
+
+    /**
+     * read a column keyed by a field name or, for positional tables, an
+     * Integer field position. arrays are grown as data is read so corrupt
+     * counts cannot force huge allocations.
+     *
+     * @return values by row, shorter than rows if the last rows are missing,
+     *         or null for a column without values
+     */
+    private static ValueObject[] readColumn(Object name, int rows, InputStream in, StreamState state)
+            throws IOException {
+        int header = in.read();
+        if (header < 0) {
+            throw new IOException("unexpected end of stream in column " + name);
+        }
+        int kind = header & ~HAS_NULLS;
+        if (kind == KIND_EMPTY) {
+            return null;
+        }
+        byte[] bitmap = null;
+        if ((header & HAS_NULLS) != 0) {
+            bitmap = readBitmap(in, (rows + 7) >>> 3);
+        }
+        ValueObject[] dictionary = null;
+        if (kind == KIND_STRING) {
+            int size = readInt(in);
+            if (size > rows) {
+                throw new IOException("string dictionary of " + size + " values for " + rows + " rows in column "
+                                      + name);
+            }
+            dictionary = new ValueObject[Math.min(size, 1024)];
+            for (int i = 0; i < size; i++) {
+                if (i == dictionary.length) {
+                    dictionary = Arrays.copyOf(dictionary, (int) Math.min(size, i * 2L));
+                }
+                dictionary[i] = ValueFactory.create(LessBytes.readString(in));
+            }
+        }
+        ValueObject[] values = new ValueObject[Math.min(rows, 1024)];
+        for (int i = 0; i < rows; i++) {
+            if ((bitmap != null) && ((bitmap[i >>> 3] & (1 << (i & 7))) == 0)) {
+                continue;
+            }
+            ValueObject value;
+            switch (kind) {
+                case KIND_LONG:
+                    value = ValueFactory.create(Varints.readSigned(in));
+                    break;
+                case KIND_DOUBLE:
+                    value = ValueFactory.create(Double.longBitsToDouble(LessBytes.readLong(in)));
+                    break;
+                case KIND_STRING:
+                    int index = readInt(in);
+                    if (index >= dictionary.length) {
+                        throw new IOException("string index " + index + " outside dictionary of "
+                                              + dictionary.length + " in column " + name);
+                    }
+                    value = dictionary[index];
+                    break;
+                case KIND_VALUE:
+                    value = DataChannelCodec.decodeValue(in, state);
+                    break;
+                default:
+                    throw new IOException("unknown column kind " + kind + " in column " + name);
+            }
+            if (i >= values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(rows, Math.max(i + 1, values.length * 2L)));
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    private static byte[] readBitmap(InputStream in, int length) throws IOException {
+        byte[] bitmap = new byte[Math.min(length, 8192)];
+        LessBytes.readBytes(in, bitmap, 0, bitmap.length);
+        while (bitmap.length < length) {
+            int read = bitmap.length;
+            bitmap = Arrays.copyOf(bitmap, (int) Math.min(length, read * 2L));
+            LessBytes.readBytes(in, bitmap, read, bitmap.length - read);
+        }
+        return bitmap;
+    }
+
+    private static void setColumn(Object name, ValueObject[] values, Bundle[] bundles) throws IOException {
+        BundleFormat format = null;
+        BundleField field = null;
+        for (int i = 0; i < values.length; i++) {
+            ValueObject value = values[i];
+            if (value == null) {
+                continue;
+            }
+            Bundle bundle = bundles[i];
+            if (bundle.getFormat() != format) {
+                format = bundle.getFormat();
+                field = fieldOf(format, name);
+            }
+            bundle.setValue(field, value);
+        }
+    }
+
+    private static BundleField fieldOf(BundleFormat format, Object name) throws IOException {
+        if (name instanceof String) {
+            return format.getField((String) name);
+        }
+        int position = (Integer) name;
+        BundleField field = (position < format.getFieldCount()) ? format.getField(position) : null;
+        if (field == null) {
+            throw new IOException("column " + position + " outside format of " + format.getFieldCount() + " fields");
+        }
+        return field;
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        long length = LessBytes.readLength(in);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("length " + length + " out of range");
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib/deflate block compression from java.util.zip. Deflaters and Inflaters
+ * are pooled and reset between blocks, so a codec shared by a writer and a
+ * reader's background thread reuses one of each per concurrent caller.
+ * {@link #close()} releases the native zlib memory of pooled instances.
+ */
+public final class DeflateBlockCodec implements BlockCodec {
+
+    public static final int ID = 1;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int level;
+    private final Queue<Compressor> compressors = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    public DeflateBlockCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateBlockCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public void compress(byte[] src, int length, OutputStream out) throws IOException {
+        Compressor compressor = compressors.poll();
+        if (compressor == null) {
+            compressor = new Compressor(level);
+        }
+        Deflater deflater = compressor.deflater;
+        try {
+            deflater.setInput(src, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int size = deflater.deflate(compressor.chunk);
+                out.write(compressor.chunk, 0, size);
+            }
+        } finally {
+            deflater.reset();
+            release(compressors, compressor);
+        }
+    }
+
+    @Override
+    public int decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(src, 0, length);
+            int size = 0;
+            while (size < rawLength) {
+                int read = inflater.inflate(dst, size, rawLength - size);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += read;
+            }
+            if (size != rawLength || !inflater.finished()) {
+                throw new IOException("block inflated to " + size + " bytes, expected " + rawLength);
+            }
+            return size;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.reset();
+            release(inflaters, inflater);
+        }
+    }
+
+    /** return an instance to its pool, or end it once the codec is closed */
+    private <T> void release(Queue<T> pool, T instance) {
+        if (closed) {
+            end(instance);
+            return;
+        }
+        pool.offer(instance);
+        if (closed) {
+            drain(pool);
+        }
+    }
+
+    /** end pooled instances. blocks compressed or decompressed later end theirs when done */
+    @Override
+    public void close() {
+        closed = true;
+        drain(compressors);
+        drain(inflaters);
+    }
+
+    private static <T> void drain(Queue<T> pool) {
+        for (T instance = pool.poll(); instance != null; instance = pool.poll()) {
+            end(instance);
+        }
+    }
+
+    private static void end(Object instance) {
+        if (instance instanceof Compressor) {
+            ((Compressor) instance).deflater.end();
+        } else {
+            ((Inflater) instance).end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateBlockCodec(level=" + level + ")";
+    }
+
+    private static final class Compressor {
+
+        final Deflater deflater;
+        final byte[] chunk = new byte[CHUNK_SIZE];
+
+        Compressor(int level) {
+            this.deflater = new Deflater(level);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * When a {@link DataChannelWriter} should drop its stream dictionaries and
+ * start over with a BUNDLE_INIT. Without resets the field, class and value
+ * dictionaries of a long lived stream only grow, on both the writing and
+ * the reading side. A reset is due before a bundle once any configured
+ * limit has been reached since the previous reset:
+ * <ul>
+ * <li>{@code maxBundles} bundles written</li>
+ * <li>{@code maxBytes} encoded bytes written</li>
+ * <li>{@code maxEntries} dictionary entries defined</li>
+ * <li>{@code maxMillis} milliseconds elapsed</li>
+ * </ul>
+ * A limit of 0 is never reached. An unframed {@link DataChannelWriter}
+ * records every reset point in its {@link DataChannelIndex}, where a reader
+ * can start decoding mid-stream.
+ */
+public final class DictionaryResetPolicy {
+
+    public static final DictionaryResetPolicy NEVER = new DictionaryResetPolicy(0, 0, 0, 0);
+
+    private final long maxBundles;
+    private final long maxBytes;
+    private final int maxEntries;
+    private final long maxNanos;
+
+    public DictionaryResetPolicy(long maxBundles, long maxBytes, int maxEntries, long maxMillis) {
+        checkArgument(maxBundles >= 0, "maxBundles must not be negative: %s", maxBundles);
+        checkArgument(maxBytes >= 0, "maxBytes must not be negative: %s", maxBytes);
+        checkArgument(maxEntries >= 0, "maxEntries must not be negative: %s", maxEntries);
+        checkArgument(maxMillis >= 0, "maxMillis must not be negative: %s", maxMillis);
+        this.maxBundles = maxBundles;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    }
+
+    public long getMaxBundles() {
+        return maxBundles;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+    }
+
+    /** whether checking the policy needs a clock reading */
+    boolean isTimed() {
+        return maxNanos > 0;
+    }
+
+    boolean isDue(long bundles, long bytes, int entries, long elapsedNanos) {
+        return ((maxBundles > 0) && (bundles >= maxBundles))
+               || ((maxBytes > 0) && (bytes >= maxBytes))
+               || ((maxEntries > 0) && (entries >= maxEntries))
+               || ((maxNanos > 0) && (elapsedNanos >= maxNanos));
+    }
+
+    @Override
+    public String toString() {
+        return "DictionaryResetPolicy(maxBundles=" + maxBundles + ",maxBytes=" + maxBytes + ",maxEntries="
+               + maxEntries + ",maxMillis=" + getMaxMillis() + ")";
+    }
+}
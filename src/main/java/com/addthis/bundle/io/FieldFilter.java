@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A conjunction of {@link FieldPredicate}s applied while a bundle is being
+ * decoded. Once any predicate fails the remaining fields are skipped rather
+ * than decoded. Instances are immutable and may be shared across streams.
+ */
+public final class FieldFilter {
+
+    /** predicates are tracked in a long bitmask while decoding a bundle */
+    public static final int MAX_PREDICATES = 64;
+
+    private final FieldPredicate[] predicates;
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    public FieldFilter(List<FieldPredicate> predicates) {
+        this(predicates.toArray(new FieldPredicate[predicates.size()]));
+    }
+
+    public FieldFilter(FieldPredicate... predicates) {
+        checkArgument(predicates.length <= MAX_PREDICATES, "at most %s predicates: %s",
+                      MAX_PREDICATES, predicates.length);
+        this.predicates = predicates.clone();
+        for (int i = 0; i < this.predicates.length; i++) {
+            checkArgument(slots.put(this.predicates[i].getField(), i) == null,
+                          "more than one predicate on field %s", this.predicates[i].getField());
+        }
+    }
+
+    int size() {
+        return predicates.length;
+    }
+
+    /** @return predicate slot for a field name or -1 */
+    int slot(String field) {
+        Integer slot = slots.get(field);
+        return (slot != null) ? slot : -1;
+    }
+
+    FieldPredicate predicate(int slot) {
+        return predicates[slot];
+    }
+
+    @Override
+    public String toString() {
+        return "FieldFilter" + Arrays.toString(predicates);
+    }
+}
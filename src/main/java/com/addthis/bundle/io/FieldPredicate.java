@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import javax.annotation.Nullable;
+
+import java.util.Set;
+
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueObject;
+
+import com.google.common.collect.ImmutableSet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A test on the value of one named field, evaluated by
+ * {@link DataChannelCodec#decodeMatching} as soon as that field is decoded.
+ * A field missing from the bundle is tested as null.
+ */
+public abstract class FieldPredicate {
+
+    private final String field;
+
+    protected FieldPredicate(String field) {
+        this.field = checkNotNull(field);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public abstract boolean test(@Nullable ValueObject value);
+
+    /** string form of the value equals {@code value} */
+    public static FieldPredicate equalTo(String field, String value) {
+        checkNotNull(value);
+        return new FieldPredicate(field) {
+            @Override public boolean test(@Nullable ValueObject v) {
+                return value.equals(ValueUtil.asNativeString(v));
+            }
+
+            @Override public String toString() {
+                return field + " == " + value;
+            }
+        };
+    }
+
+    /** string form of the value is one of {@code values} */
+    public static FieldPredicate in(String field, Set<String> values) {
+        Set<String> set = ImmutableSet.copyOf(values);
+        return new FieldPredicate(field) {
+            @Override public boolean test(@Nullable ValueObject v) {
+                String string = ValueUtil.asNativeString(v);
+                return (string != null) && set.contains(string);
+            }
+
+            @Override public String toString() {
+                return field + " in " + set;
+            }
+        };
+    }
+
+    /**
+     * integer or floating point value in {@code [min, max]}. integer values
+     * are compared exactly, floating point values against the bounds as
+     * doubles. other types never match.
+     */
+    public static FieldPredicate range(String field, long min, long max) {
+        return range(field, min, max, min, max, "[" + min + ", " + max + "]");
+    }
+
+    /**
+     * integer or floating point value in {@code [min, max]}. integer values
+     * are compared exactly against the bounds, so large longs are not rounded
+     * to doubles first. a NaN bound matches nothing. other types never match.
+     */
+    public static FieldPredicate range(String field, double min, double max) {
+        String bounds = "[" + min + ", " + max + "]";
+        double ceilMin = Math.ceil(min);
+        double floorMax = Math.floor(max);
+        if (Double.isNaN(min) || Double.isNaN(max) || (ceilMin >= 0x1p63) || (floorMax < -0x1p63)) {
+            return range(field, 1, 0, min, max, bounds);
+        }
+        // casts saturate at the long range, which covers infinite bounds
+        return range(field, (long) ceilMin, (long) floorMax, min, max, bounds);
+    }
+
+    private static FieldPredicate range(String field, long longMin, long longMax,
+                                        double doubleMin, double doubleMax, String bounds) {
+        return new FieldPredicate(field) {
+            @Override public boolean test(@Nullable ValueObject v) {
+                if (v == null) {
+                    return false;
+                }
+                switch (v.getObjectType()) {
+                    case INT:
+                        long lv = v.asLong().getLong();
+                        return (lv >= longMin) && (lv <= longMax);
+                    case FLOAT:
+                        double dv = v.asDouble().getDouble();
+                        return (dv >= doubleMin) && (dv <= doubleMax);
+                    default:
+                        return false;
+                }
+            }
+
+            @Override public String toString() {
+                return field + " in " + bounds;
+            }
+        };
+    }
+
+    /** the field is present with a non-null value */
+    public static FieldPredicate present(String field) {
+        return new FieldPredicate(field) {
+            @Override public boolean test(@Nullable ValueObject v) {
+                return v != null;
+            }
+
+            @Override public String toString() {
+                return field + " present";
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "FieldPredicate(" + field + ")";
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleException;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.Bundles;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+import com.addthis.bundle.value.ValueObject;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A bundle backed by its stateless {@link DataChannelCodec} encoding, as
+ * produced by {@link DataChannelCodec#encodeBundle(Bundle)}. The first access
+ * scans the bytes once to find where each field's value starts, and values
+ * are only decoded when they are read.
+ * <p/>
+ * Until a value is set or removed the bundle is unmodified, and a stateless
+ * re-encode writes the original bytes verbatim. Stream (stateful) encoding
+ * always re-encodes the fields, which decodes any that were not yet read.
+ * <p/>
+ * The backing array is not copied and must not change while the bundle is
+ * in use. Fields are bound through the given format, so any format whose
+ * fields have an index, such as a ListBundleFormat, can be used.
+ */
+public class LazyBundle implements Bundle {
+
+    private static final int ABSENT = -1;
+    private static final int DECODED = -2;
+
+    private final BundleFormat format;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private final ReusableByteArrayInputStream in = new ReusableByteArrayInputStream();
+    private final StreamState state = DataChannelCodec.createStatelessState();
+
+    /** per field index: value offset in data, ABSENT or DECODED */
+    private int[] offsets;
+    private ValueObject[] values;
+    private int count;
+    private boolean modified;
+
+    public LazyBundle(BundleFormat format, byte[] data) {
+        this(format, data, 0, data.length);
+    }
+
+    public LazyBundle(BundleFormat format, byte[] data, int offset, int length) {
+        this.format = format;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /** true once a value has been set or removed since construction */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * write the original encoding to out if the bundle is unmodified
+     *
+     * @return false if modified, in which case nothing is written
+     */
+    public boolean writeEncoded(OutputStream out) throws IOException {
+        if (modified) {
+            return false;
+        }
+        out.write(data, offset, length);
+        return true;
+    }
+
+    /** build the field offset table on first use */
+    private void index() {
+        if (offsets != null) {
+            return;
+        }
+        offsets = new int[Math.max(format.getFieldCount(), 4)];
+        Arrays.fill(offsets, ABSENT);
+        values = new ValueObject[offsets.length];
+        in.reset(data, offset, length);
+        try {
+            int type = in.read();
+            if ((type != DataChannelCodec.TAG_BUNDLE_INIT) && (type != DataChannelCodec.TAG_BUNDLE_START)) {
+                throw new IOException("type mismatch (" + type + ") != valid Bundle type");
+            }
+            while (true) {
+                type = in.read();
+                if (type == DataChannelCodec.TAG_BUNDLE_END) {
+                    break;
+                }
+                if (type != DataChannelCodec.TAG_BUNDLE_FIELD_NAME) {
+                    throw new IOException("lazy bundles require a stateless encoding, found field type " + type);
+                }
+                LessBytes.readLength(in);
+                int index = ensureCapacity(format.getField(LessBytes.readString(in)));
+                if (offsets[index] == ABSENT) {
+                    count++;
+                }
+                offsets[index] = in.offset();
+                DataChannelCodec.skipValue(in, state, -1);
+            }
+        } catch (IOException ex) {
+            offsets = null;
+            throw new BundleException("invalid lazy bundle encoding", ex);
+        }
+    }
+
+    private int ensureCapacity(BundleField field) {
+        int index = field.getIndex();
+        if (index >= offsets.length) {
+            int size = Math.max(index + 1, offsets.length * 2);
+            int oldSize = offsets.length;
+            offsets = Arrays.copyOf(offsets, size);
+            Arrays.fill(offsets, oldSize, size, ABSENT);
+            values = Arrays.copyOf(values, size);
+        }
+        return index;
+    }
+
+    private boolean isSet(int index) {
+        return (index < offsets.length) && (offsets[index] != ABSENT);
+    }
+
+    @Nullable @Override public ValueObject getValue(BundleField field) {
+        if (field == null) {
+            return null;
+        }
+        index();
+        int index = field.getIndex();
+        if (!isSet(index)) {
+            return null;
+        }
+        if (offsets[index] != DECODED) {
+            in.reset(data, offsets[index], offset + length - offsets[index]);
+            try {
+                values[index] = DataChannelCodec.decodeValue(in, state);
+            } catch (IOException ex) {
+                throw new BundleException("invalid value for " + field.getName(), ex);
+            }
+            offsets[index] = DECODED;
+        }
+        return values[index];
+    }
+
+    @Override
+    public void setValue(BundleField field, ValueObject value) {
+        if (field == null) {
+            return;
+        }
+        index();
+        int index = ensureCapacity(field);
+        if (offsets[index] == ABSENT) {
+            count++;
+        }
+        offsets[index] = DECODED;
+        values[index] = value;
+        modified = true;
+    }
+
+    @Override
+    public void removeValue(BundleField field) {
+        if (field == null) {
+            return;
+        }
+        index();
+        int index = field.getIndex();
+        if (isSet(index)) {
+            offsets[index] = ABSENT;
+            values[index] = null;
+            count--;
+        }
+        modified = true;
+    }
+
+    @Override
+    public int getCount() {
+        index();
+        return count;
+    }
+
+    @Override
+    public BundleFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public Bundle createBundle() {
+        return format.createBundle();
+    }
+
+    @Override
+    public Iterator<BundleField> iterator() {
+        index();
+        return new Iterator<BundleField>() {
+            private final Iterator<BundleField> iter = format.iterator();
+            private BundleField peek = null;
+            private BundleField prev = null;
+
+            @Override
+            public boolean hasNext() {
+                while (peek == null && iter.hasNext()) {
+                    BundleField next = iter.next();
+                    if (isSet(next.getIndex())) {
+                        peek = next;
+                    }
+                }
+                return peek != null;
+            }
+
+            @Override
+            public BundleField next() {
+                if (hasNext()) {
+                    prev = peek;
+                    peek = null;
+                    return prev;
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void remove() {
+                checkState(prev != null, "Next has not yet been called or remove already has");
+                removeValue(prev);
+                prev = null;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return Bundles.toJsonString(this);
+    }
+}
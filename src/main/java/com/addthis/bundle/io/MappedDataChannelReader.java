@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import javax.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads a file of length prefixed bundles as written by an unframed
+ * {@link DataChannelWriter}, decoding directly from memory mapped windows of
+ * the file. Files of any size are supported by mapping one window at a time
+ * and remapping when a record crosses the end of the current window, so
+ * repeated scans of a cached file are served without copies or read calls.
+ * <p/>
+ * A file written with a checkpoint interval can be read from any of its
+ * checkpoints. {@link #seekToRow(DataChannelIndex, long)} positions the
+ * reader at a row and the range constructor limits a reader to the records
+ * between two checkpoint offsets, so several readers can scan disjoint parts
+ * of one file in parallel.
+ * <p/>
+ * A zero length record at the end of the file or range reads as null, the
+ * end of the bundles, and anywhere else fails as corrupt.
+ */
+public class MappedDataChannelReader implements BundleReader {
+
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final BundleFactory factory;
+    private final FileChannel channel;
+    /** offset where reading stops, at most the file size */
+    private final long size;
+    private final int windowSize;
+    private final StreamState state = DataChannelCodec.createDecoderState();
+    private final ByteBufferInputStream record = new ByteBufferInputStream();
+    private MappedByteBuffer window;
+    /** file offset of the first byte of window */
+    private long windowStart;
+    /** file offset of the next record */
+    private long position;
+
+    public MappedDataChannelReader(BundleFactory factory, Path path) throws IOException {
+        this(factory, path, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedDataChannelReader(BundleFactory factory, Path path, int windowSize) throws IOException {
+        this(factory, path, windowSize, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * read only the records in {@code [start, end)}. start must be a
+     * checkpoint offset from a {@link DataChannelIndex} and end another
+     * checkpoint offset or the end of the file.
+     */
+    public MappedDataChannelReader(BundleFactory factory, Path path, int windowSize,
+                                   long start, long end) throws IOException {
+        checkArgument(windowSize >= ReusableByteArrayOutputStream.MAX_LENGTH_PREFIX,
+                      "windowSize too small: %s", windowSize);
+        checkArgument((start >= 0) && (start <= end), "invalid range [%s, %s)", start, end);
+        this.factory = factory;
+        this.windowSize = windowSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = Math.min(end, channel.size());
+        this.position = start;
+    }
+
+    @Override public Bundle read() throws IOException {
+        return readInto(factory.createBundle(), null);
+    }
+
+    private Bundle readInto(Bundle bundle, @Nullable Set<String> projection) throws IOException {
+        if (position >= size) {
+            throw new EOFException();
+        }
+        map(position, ReusableByteArrayOutputStream.MAX_LENGTH_PREFIX);
+        int prefixStart = (int) (position - windowStart);
+        record.reset(window, prefixStart, window.limit() - prefixStart);
+        long length = Varints.readUnsigned(record);
+        int prefix = record.offset() - prefixStart;
+        if ((length > Integer.MAX_VALUE - 8) || (position + prefix + length > size)) {
+            throw new IOException("record length " + length + " at offset " + position + " overruns file of " + size);
+        }
+        long start = position + prefix;
+        if (length == 0) {
+            if (start < size) {
+                throw new IOException("corrupt zero-length record at offset " + position);
+            }
+            // a trailing empty record ends the bundles
+            position = start;
+            return null;
+        }
+        map(start, (int) length);
+        record.reset(window, (int) (start - windowStart), (int) length);
+        position = start + length;
+        return DataChannelCodec.decodeBundle(bundle, record, state, projection);
+    }
+
+    /**
+     * make sure the window holds {@code [offset, offset + length)}, clipped to
+     * the end of the file
+     */
+    private void map(long offset, int length) throws IOException {
+        long end = Math.min(offset + length, size);
+        if ((window != null) && (offset >= windowStart) && (end <= windowStart + window.limit())) {
+            return;
+        }
+        long mapSize = Math.min(Math.max(windowSize, end - offset), size - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+        windowStart = offset;
+    }
+
+    /** custom types registered by the writer, {@link CustomTypeRegistry#getDefault()} by default */
+    public void setCustomTypes(CustomTypeRegistry customTypes) {
+        state.setCustomTypes(customTypes);
+    }
+
+    /**
+     * continue reading at a file offset, which must be the start of the file
+     * or a checkpoint offset from a {@link DataChannelIndex}
+     */
+    public void seek(long offset) {
+        checkArgument((offset >= 0) && (offset <= size), "offset %s outside [0, %s]", offset, size);
+        state.reset();
+        position = offset;
+    }
+
+    /**
+     * position the reader so the next {@link #read()} returns a row. seeks to
+     * the closest earlier checkpoint and skips the rows in between without
+     * decoding their values.
+     */
+    public void seekToRow(DataChannelIndex index, long row) throws IOException {
+        int checkpoint = index.checkpointFor(row);
+        seek(index.getOffset(checkpoint));
+        Bundle skipped = factory.createBundle();
+        for (long skip = row - index.getRow(checkpoint); skip > 0; skip--) {
+            readInto(skipped, Collections.<String>emptySet());
+        }
+    }
+
+    /** file offset of the next record to be read */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    @Override public BundleFactory getFactory() {
+        return factory;
+    }
+}
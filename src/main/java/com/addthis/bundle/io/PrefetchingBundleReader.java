@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads and decodes bundles from another {@link BundleReader} on a dedicated
+ * thread, staying up to {@code batches} batches of {@code batchSize} bundles
+ * ahead of the caller. Bundles are handed over a batch at a time so the
+ * queue is touched once per batch rather than once per bundle. A batch is
+ * handed over when full or when the underlying reader ends, so a slow
+ * source delays bundles by up to a batch.
+ * <p/>
+ * The end of the underlying stream and any error it throws are returned or
+ * rethrown by {@link #read()} once the bundles read before it have been
+ * consumed. The underlying reader must not be used directly once wrapped
+ * and is closed by {@link #close()}, or by the prefetch thread once it
+ * leaves a read that was blocked when the reader was closed.
+ */
+public final class PrefetchingBundleReader implements BundleReader {
+
+    private static final Logger log = LoggerFactory.getLogger(PrefetchingBundleReader.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_BATCHES = 4;
+
+    private static final ThreadFactory THREADS =
+            new ThreadFactoryBuilder().setNameFormat("PrefetchingBundleReader-%d").setDaemon(true).build();
+
+    /** underlying reader returned null */
+    private static final Object END = new Object();
+
+    private final BundleReader reader;
+    private final int batchSize;
+    private final BlockingQueue<Object> ready;
+    private final Thread thread;
+    /** how long close waits for the prefetch thread */
+    private final long closeWaitMillis;
+    private Bundle[] batch = new Bundle[0];
+    private int next;
+    /** END or the Throwable that ended the underlying stream, once reached */
+    private Object terminal;
+    private volatile boolean closed;
+    /** set by whichever of close and the prefetch thread closes the underlying reader */
+    private final AtomicBoolean readerClosed = new AtomicBoolean();
+
+    public PrefetchingBundleReader(BundleReader reader) {
+        this(reader, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES);
+    }
+
+    public PrefetchingBundleReader(BundleReader reader, int batchSize, int batches) {
+        this(reader, batchSize, batches, TimeUnit.SECONDS.toMillis(10));
+    }
+
+    PrefetchingBundleReader(BundleReader reader, int batchSize, int batches, long closeWaitMillis) {
+        checkArgument(batchSize > 0, "batchSize must be positive: %s", batchSize);
+        checkArgument(batches > 0, "batches must be positive: %s", batches);
+        this.reader = reader;
+        this.batchSize = batchSize;
+        this.closeWaitMillis = closeWaitMillis;
+        // room for the terminal item behind a full queue
+        this.ready = new ArrayBlockingQueue<>(batches + 1);
+        this.thread = THREADS.newThread(this::readLoop);
+        thread.start();
+    }
+
+    @Override
+    public Bundle read() throws IOException {
+        if (closed) {
+            throw new IOException("reader closed");
+        }
+        while (next == batch.length) {
+            if (terminal != null) {
+                return end();
+            }
+            Object item;
+            try {
+                item = ready.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for bundles");
+            }
+            if (item instanceof Bundle[]) {
+                batch = (Bundle[]) item;
+                next = 0;
+            } else {
+                terminal = item;
+            }
+        }
+        Bundle bundle = batch[next];
+        batch[next++] = null;
+        return bundle;
+    }
+
+    private Bundle end() throws IOException {
+        if (terminal == END) {
+            return null;
+        }
+        Throwable cause = (Throwable) terminal;
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException(cause);
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                Bundle[] bundles = new Bundle[batchSize];
+                int count = 0;
+                Object end = null;
+                try {
+                    while (count < batchSize) {
+                        Bundle bundle = reader.read();
+                        if (bundle == null) {
+                            end = END;
+                            break;
+                        }
+                        bundles[count++] = bundle;
+                    }
+                } catch (Throwable ex) {
+                    end = ex;
+                }
+                if (count > 0) {
+                    ready.put((count == batchSize) ? bundles : Arrays.copyOf(bundles, count));
+                }
+                if (end != null) {
+                    ready.put(end);
+                    return;
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // closed
+        } finally {
+            if (closed) {
+                // close gave up waiting for this thread and left the reader to it
+                try {
+                    closeReader();
+                } catch (IOException | RuntimeException ex) {
+                    log.warn("failed to close underlying reader", ex);
+                }
+            }
+        }
+    }
+
+    private void closeReader() throws IOException {
+        if (readerClosed.compareAndSet(false, true)) {
+            reader.close();
+        }
+    }
+
+    /**
+     * stop prefetching and close the underlying reader. a prefetch thread
+     * still blocked in a read after ten seconds closes the reader itself
+     * when that read returns, since the reader is not safe to close under it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(closeWaitMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!thread.isAlive()) {
+            closeReader();
+        }
+    }
+
+    @Override
+    public BundleFactory getFactory() {
+        return reader.getFactory();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * A ByteArrayInputStream that can be pointed at a new array (or a new
+ * prefix of the same array) instead of being reallocated for every record.
+ */
+final class ReusableByteArrayInputStream extends ByteArrayInputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private int start;
+
+    ReusableByteArrayInputStream() {
+        super(EMPTY);
+    }
+
+    /** read the first {@code length} bytes of {@code buf} from the start */
+    void reset(byte[] buf, int length) {
+        reset(buf, 0, length);
+    }
+
+    /** read {@code length} bytes of {@code buf} starting at {@code offset} */
+    void reset(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.start = offset;
+        this.pos = offset;
+        this.count = offset + length;
+        this.mark = offset;
+    }
+
+    /** number of bytes consumed since the last reset */
+    int position() {
+        return pos - start;
+    }
+
+    /** backing array of the current record */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /** offset in the backing array of the next byte to be read */
+    int offset() {
+        return pos;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A growable ByteArrayOutputStream that is reused across records. Space for
+ * the varint length prefix is reserved in front of each record so prefix and
+ * payload can be handed to the underlying stream with a single write call.
+ */
+final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    /** longest varint {@link com.addthis.basis.util.LessBytes#writeLength} emits for an int */
+    static final int MAX_LENGTH_PREFIX = 5;
+
+    ReusableByteArrayOutputStream() {
+        super(256);
+    }
+
+    /** discard buffered data and start a new length prefixed record */
+    void startRecord() {
+        count = MAX_LENGTH_PREFIX;
+    }
+
+    /** length of the record started by the last {@link #startRecord()} */
+    int recordLength() {
+        return count - MAX_LENGTH_PREFIX;
+    }
+
+    /**
+     * fill in the length prefix of the current record and write prefix and
+     * record to {@code out} in one call. the encoding matches
+     * {@link com.addthis.basis.util.LessBytes#writeBytes(byte[], OutputStream)}.
+     *
+     * @return number of bytes written
+     */
+    int writeRecordTo(OutputStream out) throws IOException {
+        int start = writeLengthPrefix();
+        out.write(buf, start, count - start);
+        return count - start;
+    }
+
+    /** @return offset of the first prefix byte in {@link #buffer()} */
+    int writeLengthPrefix() {
+        int length = recordLength();
+        int start = MAX_LENGTH_PREFIX - lengthPrefixSize(length);
+        int pos = start;
+        int remaining = length;
+        do {
+            int bits = remaining & 0x7f;
+            remaining >>>= 7;
+            buf[pos++] = (byte) ((remaining != 0) ? (bits | 0x80) : bits);
+        } while (remaining != 0);
+        return start;
+    }
+
+    /** backing array, valid up to {@link #size()} */
+    byte[] buffer() {
+        return buf;
+    }
+
+    static int lengthPrefixSize(int length) {
+        int size = 1;
+        while ((length >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+}
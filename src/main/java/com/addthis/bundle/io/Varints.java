@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Unsigned 64 bit varints and zigzag mapping for signed values. The byte
+ * format matches {@link com.addthis.basis.util.LessBytes#writeLength(long, OutputStream)}
+ * for non-negative values but also covers the full unsigned range, which
+ * zigzag encoded longs need.
+ */
+final class Varints {
+
+    private Varints() {
+    }
+
+    static void writeUnsigned(long value, OutputStream out) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readUnsigned(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint longer than 10 bytes");
+    }
+
+    static void writeSigned(long value, OutputStream out) throws IOException {
+        writeUnsigned(zigzag(value), out);
+    }
+
+    static long readSigned(InputStream in) throws IOException {
+        return unzigzag(readUnsigned(in));
+    }
+
+    static int unsignedSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    static int signedSize(long value) {
+        return unsignedSize(zigzag(value));
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
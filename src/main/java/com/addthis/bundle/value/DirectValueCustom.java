@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A custom value with its own compact binary form. When its class is
+ * registered with a {@code CustomTypeRegistry} the codec writes and reads
+ * that form directly instead of going through {@link #asMap()} and
+ * {@link #setValues(ValueMap)}.
+ */
+public interface DirectValueCustom<T> extends ValueCustom<T> {
+
+    /** write the binary form of this value */
+    public void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * re-hydration call. {@code in} holds exactly the bytes written by
+     * {@link #writeTo(OutputStream)}, and any left unread are skipped.
+     */
+    public void readFrom(InputStream in, int length) throws IOException;
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.value;
+
+import java.util.Arrays;
+
+import com.google.common.primitives.Doubles;
+
+/**
+ * A {@link ValueArray} of doubles backed by a {@code double[]}. Elements are
+ * created on access, and {@link #getDouble(int)} reads them without creating
+ * any. Storing an element that is not a double switches the array to a boxed
+ * list, after which it behaves like a {@link DefaultArray}.
+ */
+public class DoubleValueArray extends PackedValueArray<double[]> {
+
+    public DoubleValueArray(int capacity) {
+        this(new double[capacity], 0);
+    }
+
+    /** wraps the first size entries of values without copying */
+    public DoubleValueArray(double[] values, int size) {
+        super(values, values.length, size);
+    }
+
+    public double getDouble(int index) {
+        if (boxed != null) {
+            return boxed.get(index).asDouble().getDouble();
+        }
+        checkIndex(index);
+        return values[index];
+    }
+
+    /** a copy of the elements as primitives */
+    public double[] toDoubleArray() {
+        if (boxed == null) {
+            return Arrays.copyOf(values, size);
+        }
+        double[] copy = new double[boxed.size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = boxed.get(i).asDouble().getDouble();
+        }
+        return copy;
+    }
+
+    @Override int capacity() {
+        return values.length;
+    }
+
+    @Override double[] copyOf(int capacity) {
+        return Arrays.copyOf(values, capacity);
+    }
+
+    @Override boolean isPackable(ValueObject value) {
+        return (value != null) && (value.getObjectType() == TYPE.FLOAT);
+    }
+
+    @Override ValueObject box(int index) {
+        return ValueFactory.create(values[index]);
+    }
+
+    @Override void store(int index, ValueObject value) {
+        values[index] = value.asDouble().getDouble();
+    }
+
+    @Override int hashAt(int index) {
+        return Doubles.hashCode(values[index]);
+    }
+
+    @Override boolean equalsAt(int index, PackedValueArray<double[]> other) {
+        return values[index] == other.values[index];
+    }
+}
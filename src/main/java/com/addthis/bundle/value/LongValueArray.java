@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.value;
+
+import java.util.Arrays;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * A {@link ValueArray} of longs backed by a {@code long[]}. Elements are
+ * created on access, and {@link #getLong(int)} reads them without creating
+ * any. Storing an element that is not a long switches the array to a boxed
+ * list, after which it behaves like a {@link DefaultArray}.
+ */
+public class LongValueArray extends PackedValueArray<long[]> {
+
+    public LongValueArray(int capacity) {
+        this(new long[capacity], 0);
+    }
+
+    /** wraps the first size entries of values without copying */
+    public LongValueArray(long[] values, int size) {
+        super(values, values.length, size);
+    }
+
+    public long getLong(int index) {
+        if (boxed != null) {
+            return boxed.get(index).asLong().getLong();
+        }
+        checkIndex(index);
+        return values[index];
+    }
+
+    /** a copy of the elements as primitives */
+    public long[] toLongArray() {
+        if (boxed == null) {
+            return Arrays.copyOf(values, size);
+        }
+        long[] copy = new long[boxed.size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = boxed.get(i).asLong().getLong();
+        }
+        return copy;
+    }
+
+    @Override int capacity() {
+        return values.length;
+    }
+
+    @Override long[] copyOf(int capacity) {
+        return Arrays.copyOf(values, capacity);
+    }
+
+    @Override boolean isPackable(ValueObject value) {
+        return (value != null) && (value.getObjectType() == TYPE.INT);
+    }
+
+    @Override ValueObject box(int index) {
+        return ValueFactory.create(values[index]);
+    }
+
+    @Override void store(int index, ValueObject value) {
+        values[index] = value.asLong().getLong();
+    }
+
+    @Override int hashAt(int index) {
+        return Longs.hashCode(values[index]);
+    }
+
+    @Override boolean equalsAt(int index, PackedValueArray<long[]> other) {
+        return values[index] == other.values[index];
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.value;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ValueArray} backed by a primitive array {@code A}. Subclasses
+ * supply element access to the primitives and this class handles the list
+ * operations and the switch to a boxed list once an element of another type
+ * is stored, after which the array behaves like a {@link DefaultArray}.
+ */
+abstract class PackedValueArray<A> extends AbstractList<ValueObject> implements ValueArray {
+
+    A values;
+    int size;
+    /** elements once a value of another type was stored, null while packed */
+    List<ValueObject> boxed;
+
+    PackedValueArray(A values, int capacity, int size) {
+        if ((size < 0) || (size > capacity)) {
+            throw new IndexOutOfBoundsException("size: " + size + " capacity: " + capacity);
+        }
+        this.values = values;
+        this.size = size;
+    }
+
+    /** length of values */
+    abstract int capacity();
+
+    /** values copied into a new array of length capacity */
+    abstract A copyOf(int capacity);
+
+    /** true if value can be stored as a primitive */
+    abstract boolean isPackable(ValueObject value);
+
+    /** element index of values as a value */
+    abstract ValueObject box(int index);
+
+    /** store a packable value at index of values */
+    abstract void store(int index, ValueObject value);
+
+    /** hash of element index of values, as the hash of its boxed value */
+    abstract int hashAt(int index);
+
+    /** true if element index of values equals that of other, as their boxed values would */
+    abstract boolean equalsAt(int index, PackedValueArray<A> other);
+
+    /** true while elements are held as primitives */
+    public boolean isPacked() {
+        return boxed == null;
+    }
+
+    @Override public ValueObject get(int index) {
+        if (boxed != null) {
+            return boxed.get(index);
+        }
+        checkIndex(index);
+        return box(index);
+    }
+
+    @Override public ValueObject set(int index, ValueObject value) {
+        if ((boxed == null) && isPackable(value)) {
+            ValueObject previous = get(index);
+            store(index, value);
+            return previous;
+        }
+        box();
+        return boxed.set(index, value);
+    }
+
+    @Override public void add(int index, ValueObject value) {
+        if ((boxed == null) && isPackable(value)) {
+            if ((index < 0) || (index > size)) {
+                throw new IndexOutOfBoundsException("index: " + index + " size: " + size);
+            }
+            if (size == capacity()) {
+                values = copyOf(Math.max(8, size * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            store(index, value);
+            size++;
+            modCount++;
+            return;
+        }
+        box();
+        boxed.add(index, value);
+        modCount++;
+    }
+
+    @Override public ValueObject remove(int index) {
+        if (boxed != null) {
+            modCount++;
+            return boxed.remove(index);
+        }
+        ValueObject previous = get(index);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        modCount++;
+        return previous;
+    }
+
+    @Override public void clear() {
+        boxed = null;
+        size = 0;
+        modCount++;
+    }
+
+    @Override public int size() {
+        return (boxed != null) ? boxed.size() : size;
+    }
+
+    @Override public int hashCode() {
+        if (boxed != null) {
+            return boxed.hashCode();
+        }
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = (31 * hash) + hashAt(i);
+        }
+        return hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((boxed != null) || (obj == null) || (obj.getClass() != getClass())
+                || (((PackedValueArray<A>) obj).boxed != null)) {
+            return super.equals(obj);
+        }
+        PackedValueArray<A> other = (PackedValueArray<A>) obj;
+        if (other.size != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!equalsAt(i, other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void checkIndex(int index) {
+        if ((index < 0) || (index >= size)) {
+            throw new IndexOutOfBoundsException("index: " + index + " size: " + size);
+        }
+    }
+
+    private void box() {
+        if (boxed == null) {
+            List<ValueObject> list = new ArrayList<>(size + 1);
+            for (int i = 0; i < size; i++) {
+                list.add(box(i));
+            }
+            boxed = list;
+            values = copyOf(0);
+            size = 0;
+        }
+    }
+}
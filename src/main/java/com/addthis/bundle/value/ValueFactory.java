@@ -62,6 +62,16 @@ public final class ValueFactory {
         return new DefaultArray(size);
     }
 
+    /** an array of longs backed by values, which is not copied */
+    public static LongValueArray createArray(long[] values) {
+        return new LongValueArray(values, values.length);
+    }
+
+    /** an array of doubles backed by values, which is not copied */
+    public static DoubleValueArray createArray(double[] values) {
+        return new DoubleValueArray(values, values.length);
+    }
+
     public static ValueMap createMap(Map<String, List<String>> map) {
         ValueMap defaultMap = createMap();
         for (Map.Entry<String, List<String>> entry : map.entrySet()) {
@@ -54,6 +54,20 @@ public class IndexBundleTest {
 
     }
 
+    @Test
+    public void iterateSetFields() {
+        IndexBundleFormat format = new IndexBundleFormat(3);
+        IndexBundle bundle = new IndexBundle(format);
+
+        bundle.setValue(0, "first");
+        bundle.setValue(2, "last");
+
+        Iterator<BundleField> iterator = bundle.iterator();
+        Assert.assertEquals(format.getField(0), iterator.next());
+        Assert.assertEquals(format.getField(2), iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+    }
+
     @Test
     public void countFields() {
         IndexBundleFormat format = new IndexBundleFormat(5);
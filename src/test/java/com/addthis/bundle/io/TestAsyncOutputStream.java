@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAsyncOutputStream {
+
+    @Test
+    public void writesInOrder() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (AsyncOutputStream out = new AsyncOutputStream(sink, 1000, 3)) {
+            int off = 0;
+            for (int chunk = 1; off < data.length; chunk = (chunk * 7) % 2500 + 1) {
+                int len = Math.min(chunk, data.length - off);
+                if ((len & 1) == 0) {
+                    out.write(data, off, len);
+                } else {
+                    for (int i = 0; i < len; i++) {
+                        out.write(data[off + i]);
+                    }
+                }
+                off += len;
+            }
+            out.flush();
+            assertEquals(data.length, sink.size());
+        }
+        assertArrayEquals(data, sink.toByteArray());
+    }
+
+    @Test
+    public void bundleWriter() throws Exception {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(new AsyncOutputStream(sink, 16, 2), 16)) {
+            for (int i = 0; i < 10; i++) {
+                for (Bundle bundle : bundles) {
+                    writer.write(bundle);
+                }
+            }
+        }
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(sink.toByteArray()));
+        for (int i = 0; i < 10; i++) {
+            TestDataChannelReader.assertBundlesEqual(bundles, reader);
+        }
+    }
+
+    @Test
+    public void closeSurfacesWriteError() throws IOException {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        AsyncOutputStream out = new AsyncOutputStream(failing, 8, 2);
+        out.write(new byte[4]);
+        try {
+            out.close();
+            fail("expected write error");
+        } catch (IOException ex) {
+            assertEquals("disk full", ex.getMessage());
+        }
+        try {
+            out.write(1);
+            fail("expected closed stream");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void writeSurfacesEarlierError() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        AsyncOutputStream out = new AsyncOutputStream(failing, 8, 2);
+        // hands off the first buffer, leaving room in the second
+        out.write(new byte[9]);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                // an empty write never hands off, so only the failure check can throw
+                out.write(new byte[0]);
+            } catch (IOException ex) {
+                assertEquals("disk full", ex.getMessage());
+                break;
+            }
+            assertTrue("expected the write error to surface", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        try {
+            out.close();
+            fail("expected write error");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void interruptedHandOff() throws Exception {
+        BlockingSink sink = new BlockingSink();
+        AsyncOutputStream out = new AsyncOutputStream(sink, 4, 2);
+        // the writer thread blocks on the first buffer, so the second hand-off waits for a free one
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        interruptWhenWaiting(Thread.currentThread());
+        try {
+            out.write(9);
+            fail("expected an interrupted hand-off");
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(Thread.interrupted());
+        try {
+            out.write(10);
+            fail("expected a stream without a buffer to fail");
+        } catch (IOException expected) {
+        }
+        sink.release();
+        out.close();
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, sink.toByteArray());
+        assertFalse(sink.closedDuringWrite);
+    }
+
+    @Test
+    public void interruptedCloseWaitsForWriter() throws Exception {
+        BlockingSink sink = new BlockingSink();
+        AsyncOutputStream out = new AsyncOutputStream(sink, 4, 2);
+        out.write(new byte[]{1, 2, 3, 4, 5});
+        Thread releaser = new Thread(() -> {
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+            sink.release();
+        });
+        releaser.start();
+        Thread.currentThread().interrupt();
+        try {
+            out.close();
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(Thread.interrupted());
+        releaser.join();
+        assertTrue(sink.closed);
+        assertFalse(sink.closedDuringWrite);
+    }
+
+    private static void interruptWhenWaiting(Thread thread) {
+        new Thread(() -> {
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+            thread.interrupt();
+        }).start();
+    }
+
+    /** a sink whose writes block, ignoring interrupts, until released */
+    private static final class BlockingSink extends ByteArrayOutputStream {
+
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile boolean writing;
+        volatile boolean closed;
+        volatile boolean closedDuringWrite;
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writing = true;
+            Uninterruptibles.awaitUninterruptibly(released);
+            super.write(b, off, len);
+            writing = false;
+        }
+
+        @Override
+        public void close() {
+            closedDuringWrite |= writing;
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import com.google.common.hash.Hashing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCrc32c {
+
+    @Test
+    public void knownValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Checksum checksum = Crc32c.create();
+        checksum.update(data, 0, data.length);
+        assertEquals(0xe3069283L, checksum.getValue());
+    }
+
+    @Test
+    public void tableMatchesGuava() {
+        Random random = new Random(7);
+        Checksum table = new Crc32c.TableCrc32c();
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length + 3];
+            random.nextBytes(data);
+            table.reset();
+            table.update(data, 3, length);
+            long expected = Hashing.crc32c().hashBytes(data, 3, length).padToLong();
+            assertEquals(expected, table.getValue());
+        }
+    }
+}
@@ -13,24 +13,63 @@
  */
 package com.addthis.bundle.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.addthis.basis.util.LessBytes;
 import com.addthis.basis.util.LessStrings;
 
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.core.Bundles;
 import com.addthis.bundle.core.TestBundle;
+import com.addthis.bundle.core.index.IndexBundle;
+import com.addthis.bundle.core.index.IndexBundleFormat;
 import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
 import com.addthis.bundle.util.AutoField;
+import com.addthis.bundle.util.map.MapBundle;
+import com.addthis.bundle.value.AbstractCustom;
+import com.addthis.bundle.value.DefaultArray;
+import com.addthis.bundle.value.DirectValueCustom;
+import com.addthis.bundle.value.DoubleValueArray;
+import com.addthis.bundle.value.LongValueArray;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueLong;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueObject;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestDataChannelCodec {
 
@@ -72,4 +111,696 @@ public class TestDataChannelCodec {
             assertEquals(field.getString(input), field.getString(output));
         }
     }
+
+    @Test
+    public void byteBufRoundTrip() throws Exception {
+        List<Bundle> input = ImmutableList.of(Bundles.decode("abc : 1, def : two, ghi : [3, 4]"),
+                                              Bundles.decode("abc : -5, def : six, jkl : {m : 7.5}"),
+                                              Bundles.decode("def : eight"));
+        byte[] expected = encodeAll(input, DataChannelCodec.createFieldIndexMap(),
+                                    DataChannelCodec.createClassIndexMap());
+        FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+        ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
+        ByteBuf buf = Unpooled.buffer(4);
+        for (Bundle bundle : input) {
+            DataChannelCodec.encodeBundle(bundle, buf, fieldMap, classMap);
+        }
+        byte[] actual = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), actual);
+        assertArrayEquals(expected, actual);
+        fieldMap = DataChannelCodec.createFieldIndexMap();
+        classMap = DataChannelCodec.createClassIndexMap();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), buf, fieldMap, classMap);
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, buf.readableBytes());
+    }
+
+    @Test
+    public void byteBufferRoundTrip() throws Exception {
+        List<Bundle> input = ImmutableList.of(Bundles.decode("abc : 1, def : two"),
+                                              Bundles.decode("abc : 281474976710657, def : three"));
+        byte[] expected = encodeAll(input, DataChannelCodec.createFieldIndexMap(),
+                                    DataChannelCodec.createClassIndexMap());
+        FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+        ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length + 3);
+        buffer.position(3);
+        for (Bundle bundle : input) {
+            DataChannelCodec.encodeBundle(bundle, buffer, fieldMap, classMap);
+        }
+        assertEquals(buffer.capacity(), buffer.position());
+        buffer.position(3);
+        byte[] actual = new byte[expected.length];
+        buffer.duplicate().get(actual);
+        assertArrayEquals(expected, actual);
+        fieldMap = DataChannelCodec.createFieldIndexMap();
+        classMap = DataChannelCodec.createClassIndexMap();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), buffer, fieldMap, classMap);
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void byteBufferOverflow() throws Exception {
+        Bundle bundle = new ListBundle();
+        bundle.setValue(bundle.getFormat().getField("abc"), ValueFactory.create("a longer value than fits"));
+        DataChannelCodec.encodeBundle(bundle, ByteBuffer.allocate(8), DataChannelCodec.createFieldIndexMap(),
+                                      DataChannelCodec.createClassIndexMap());
+    }
+
+    @Test
+    public void valueDictionary() throws Exception {
+        List<Bundle> input = ImmutableList.of(Bundles.decode("host : web01, country : US, tags : [US, web01]"),
+                                              Bundles.decode("host : web02, country : US, geo : {US : web02}"),
+                                              Bundles.decode("host : web01, country : GB, tags : [GB]"),
+                                              Bundles.decode("host : web01, country : US"));
+        byte[] plain = encodeAll(input, DataChannelCodec.createStreamState());
+        assertArrayEquals(encodeAll(input, DataChannelCodec.createFieldIndexMap(),
+                                    DataChannelCodec.createClassIndexMap()), plain);
+        StreamState encoder = DataChannelCodec.createStreamState(3);
+        byte[] dictionary = encodeAll(input, encoder);
+        assertEquals(3, encoder.getValueMap().size());
+        assertTrue(dictionary.length < plain.length);
+        ByteArrayInputStream in = new ByteArrayInputStream(dictionary);
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test(expected = IOException.class)
+    public void valueDictionaryRequiresState() throws Exception {
+        byte[] encoded = encodeAll(ImmutableList.of(Bundles.decode("host : web01")),
+                                   DataChannelCodec.createStreamState(10));
+        DataChannelCodec.decodeBundle(new ListBundle(), encoded, DataChannelCodec.createFieldIndexMap(),
+                                      DataChannelCodec.createClassIndexMap());
+    }
+
+    @Test
+    public void deltaLongs() throws Exception {
+        ListBundleFormat inputFormat = new ListBundleFormat();
+        List<Bundle> input = new ArrayList<>();
+        long time = 1400000000000L;
+        for (int i = 0; i < 100; i++) {
+            time += (i % 10 == 9) ? -3 : 17;
+            Bundle bundle = new ListBundle(inputFormat);
+            bundle.setValue(inputFormat.getField("time"), ValueFactory.create(time));
+            bundle.setValue(inputFormat.getField("seq"), ValueFactory.create(i));
+            // a field that alternates type keeps the last integer as its base
+            bundle.setValue(inputFormat.getField("mixed"), (i % 2 == 0) ? ValueFactory.create(Long.MIN_VALUE + 1 + i)
+                                                                       : ValueFactory.create("x" + i));
+            ValueArray nested = ValueFactory.createArray(1);
+            nested.add(ValueFactory.create(time));
+            bundle.setValue(inputFormat.getField("nested"), nested);
+            input.add(bundle);
+        }
+        byte[] plain = encodeAll(input, DataChannelCodec.createStreamState());
+        StreamState encoder = DataChannelCodec.createStreamState(0, true);
+        byte[] delta = encodeAll(input, encoder);
+        assertTrue(delta.length + " vs " + plain.length, delta.length < plain.length - 100 * 8);
+        ByteArrayInputStream in = new ByteArrayInputStream(delta);
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, in.available());
+        // a reset starts over with absolute values
+        encoder.reset();
+        byte[] restarted = encodeAll(input.subList(0, 1), encoder);
+        Bundle output = DataChannelCodec.decodeBundle(new ListBundle(), new ByteArrayInputStream(restarted),
+                                                      DataChannelCodec.createDecoderState());
+        assertEquals(Bundles.getAsStringMapSlowly(input.get(0)), Bundles.getAsStringMapSlowly(output));
+    }
+
+    @Test
+    public void manyFields() throws Exception {
+        ListBundleFormat inputFormat = new ListBundleFormat();
+        List<Bundle> input = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Bundle bundle = new ListBundle(inputFormat);
+            for (int j = 0; j < 300; j++) {
+                bundle.setValue(inputFormat.getField("f" + j), ValueFactory.create(i * j));
+            }
+            input.add(bundle);
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(encodeAll(input, DataChannelCodec.createStreamState()));
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(300, decoder.getFieldMap().size());
+    }
+
+    @Test
+    public void indexMap() {
+        FieldIndexMap map = DataChannelCodec.createFieldIndexMap();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + 1, map.createIndex(format.getField("f" + i)));
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            BundleField field = format.getField("f" + i);
+            assertEquals(i + 1, map.indexOf(field));
+            assertEquals(Integer.valueOf(i + 1), map.getObjectIndex(field));
+            assertEquals(field, map.objectAt(i + 1));
+        }
+        assertEquals(-1, map.createIndex(format.getField("f0")));
+        assertNull(map.createObjectIndex(format.getField("f0")));
+        assertNull(map.setObjectIndex(1, format.getField("other")));
+        map.reset();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.indexOf(format.getField("f0")));
+        assertEquals(Integer.valueOf(5), map.setObjectIndex(5, format.getField("f0")));
+        assertEquals(5, map.indexOf(format.getField("f0")));
+    }
+
+    @Test
+    public void projection() throws Exception {
+        List<Bundle> input = ImmutableList.of(
+                Bundles.decode("host : web01, time : 100, tags : [a, {b : c}], country : US"),
+                Bundles.decode("host : web02, time : 120, geo : {country : US}, country : GB"),
+                Bundles.decode("host : web01, time : 125, tags : [a, web02], country : US"),
+                Bundles.decode("host : web03, time : 130, geo : {country : GB}, country : GB"));
+        StreamState encoder = DataChannelCodec.createStreamState(16, true);
+        ByteArrayInputStream in = new ByteArrayInputStream(encodeAll(input, encoder));
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        Set<String> projection = ImmutableSet.of("country");
+        // projected bundles define strings and deltas that the full decodes depend on
+        for (int i = 0; i < 2; i++) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder, projection);
+            assertEquals(1, output.getCount());
+            assertEquals(input.get(i).getValue(input.get(i).getFormat().getField("country")),
+                         output.getValue(format.getField("country")));
+        }
+        for (int i = 2; i < 4; i++) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder, null);
+            assertEquals(Bundles.getAsStringMapSlowly(input.get(i)), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, in.available());
+        Bundle stateless = DataChannelCodec.decodeBundle(new ListBundle(), new ByteArrayInputStream(
+                DataChannelCodec.encodeBundle(input.get(0))), DataChannelCodec.createStreamState(),
+                ImmutableSet.of("time", "tags"));
+        assertEquals(ImmutableSet.of("time", "tags"), Bundles.getAsStringMapSlowly(stateless).keySet());
+    }
+
+    @Test
+    public void decodeMatching() throws Exception {
+        List<Bundle> input = ImmutableList.of(
+                Bundles.decode("host : web01, status : 200, ref : a.com"),
+                Bundles.decode("host : web02, status : 404"),
+                Bundles.decode("host : web03, status : 500, ref : b.com"),
+                Bundles.decode("host : web01, status : 301, ref : a.com"));
+        ByteArrayInputStream in = new ByteArrayInputStream(encodeAll(input, DataChannelCodec.createStreamState(8)));
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        FieldFilter filter = new FieldFilter(FieldPredicate.in("host", ImmutableSet.of("web01", "web02")),
+                                             FieldPredicate.present("ref"));
+        ListBundleFormat format = new ListBundleFormat();
+        boolean[] expected = {true, false, false, true};
+        for (int i = 0; i < expected.length; i++) {
+            Bundle output = new ListBundle(format);
+            assertEquals(expected[i], DataChannelCodec.decodeMatching(output, in, decoder, null, filter));
+            if (expected[i]) {
+                assertEquals(Bundles.getAsStringMapSlowly(input.get(i)), Bundles.getAsStringMapSlowly(output));
+            }
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void schemaRows() throws Exception {
+        ListBundleFormat inputFormat = new ListBundleFormat();
+        List<Bundle> input = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Bundle bundle = new ListBundle(inputFormat);
+            for (int f = 0; f < 40; f++) {
+                if ((f + i) % 7 != 0) {
+                    bundle.setValue(inputFormat.getField("field" + f), ValueFactory.create(i * f));
+                }
+            }
+            if (i == 150) {
+                // a new field changes the format version mid-stream
+                bundle.setValue(inputFormat.getField("late"), ValueFactory.create("x"));
+            }
+            input.add(bundle);
+        }
+        byte[] tagged = encodeAll(input, DataChannelCodec.createStreamState(0, true));
+        StreamState encoder = DataChannelCodec.createStreamState(0, true, true);
+        byte[] rows = encodeAll(input, encoder);
+        assertTrue(rows.length + " vs " + tagged.length, rows.length < tagged.length - 200 * 60);
+        ByteArrayInputStream in = new ByteArrayInputStream(rows);
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, in.available());
+        // a reset declares the schema again
+        encoder.reset();
+        Bundle output = DataChannelCodec.decodeBundle(
+                new ListBundle(), new ByteArrayInputStream(encodeAll(input.subList(0, 1), encoder)),
+                DataChannelCodec.createDecoderState());
+        assertEquals(Bundles.getAsStringMapSlowly(input.get(0)), Bundles.getAsStringMapSlowly(output));
+    }
+
+    @Test
+    public void schemaRowsGrowingFormats() throws Exception {
+        // a format that is its own version, rewritten as it gains fields
+        MapBundle map = new MapBundle();
+        map.put("b", "1");
+        StreamState encoder = DataChannelCodec.createStreamState(0, false, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Map<String, String>> expected = new ArrayList<>();
+        for (String key : new String[]{"c", "a", "d"}) {
+            DataChannelCodec.encodeBundle(map, out, encoder);
+            expected.add(Bundles.getAsStringMapSlowly(map));
+            map.put(key, key + key);
+        }
+        // a format with no fields yet when its first row is written
+        ListBundleFormat empty = new ListBundleFormat();
+        for (int i = 0; i < 3; i++) {
+            Bundle bundle = new ListBundle(empty);
+            if (i > 0) {
+                bundle.setValue(empty.getField("f" + i), ValueFactory.create(i));
+                bundle.setValue(empty.getField("f1"), ValueFactory.create(-i));
+            }
+            DataChannelCodec.encodeBundle(bundle, out, encoder);
+            expected.add(Bundles.getAsStringMapSlowly(bundle));
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Map<String, String> row : expected) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            assertEquals(row, Bundles.getAsStringMapSlowly(output));
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void schemaRowsWithoutFields() throws Exception {
+        ListBundleFormat empty = new ListBundleFormat();
+        StreamState encoder = DataChannelCodec.createStreamState(0, false, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            DataChannelCodec.encodeBundle(new ListBundle(empty), out, encoder);
+        }
+        assertFalse(encoder.isEmpty());
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (int i = 0; i < 3; i++) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            assertEquals(0, output.getCount());
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void schemaRowsProjectedAndFiltered() throws Exception {
+        List<Bundle> input = ImmutableList.of(
+                Bundles.decode("host : web01, status : 200, ref : a.com"),
+                Bundles.decode("host : web02, status : 404"),
+                Bundles.decode("host : web03, status : 500, ref : b.com"),
+                Bundles.decode("host : web01, status : 301, ref : a.com"));
+        ByteArrayInputStream in = new ByteArrayInputStream(
+                encodeAll(input, DataChannelCodec.createStreamState(8, true, true)));
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        FieldFilter filter = new FieldFilter(FieldPredicate.in("host", ImmutableSet.of("web01", "web02")),
+                                             FieldPredicate.present("ref"));
+        ListBundleFormat format = new ListBundleFormat();
+        boolean[] expected = {true, false, false, true};
+        for (int i = 0; i < expected.length; i++) {
+            Bundle output = new ListBundle(format);
+            assertEquals(expected[i], DataChannelCodec.decodeMatching(output, in, decoder,
+                                                                      ImmutableSet.of("status"), filter));
+            if (expected[i]) {
+                assertEquals(ImmutableSet.of("status"), Bundles.getAsStringMapSlowly(output).keySet());
+            }
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void indexBundles() throws Exception {
+        IndexBundleFormat format = new IndexBundleFormat(5);
+        List<Bundle> input = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            IndexBundle bundle = new IndexBundle(format);
+            bundle.setValue(0, ValueFactory.create(i));
+            bundle.setValue(1, "row" + (i % 3));
+            if (i % 2 == 0) {
+                bundle.setValue(3, ValueFactory.create(i / 4.0));
+            }
+            bundle.setValue(4, (i % 5 == 0) ? null : ValueFactory.create("v" + i));
+            input.add(bundle);
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(encodeAll(input, DataChannelCodec.createStreamState(8)));
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        IndexBundleFormat outputFormat = new IndexBundleFormat(6);
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new IndexBundle(outputFormat), in, decoder);
+            assertEquals(bundle.getCount() - ((bundle.getValue(format.getField(4)) == null) ? 1 : 0),
+                         output.getCount());
+            for (int f = 0; f < 5; f++) {
+                assertEquals(bundle.getValue(format.getField(f)), output.getValue(outputFormat.getField(f)));
+            }
+        }
+        assertEquals(0, in.available());
+        // stateless, and into a named format that has enough fields
+        ListBundleFormat named = new ListBundleFormat();
+        for (int f = 0; f < 5; f++) {
+            named.getField("f" + f);
+        }
+        Bundle output = DataChannelCodec.decodeBundle(new ListBundle(named),
+                                                      DataChannelCodec.encodeBundle(input.get(2)));
+        assertEquals(input.get(2).getValue(format.getField(1)), output.getValue(named.getField("f1")));
+        try {
+            DataChannelCodec.decodeBundle(new IndexBundle(new IndexBundleFormat(2)),
+                                          DataChannelCodec.encodeBundle(input.get(0)));
+            fail("expected a format that is too short to fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void packedArrays() throws Exception {
+        ListBundleFormat inputFormat = new ListBundleFormat();
+        List<Bundle> input = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Bundle bundle = new ListBundle(inputFormat);
+            ValueArray histogram = ValueFactory.createArray(1000);
+            ValueArray vector = ValueFactory.createArray(100);
+            ValueArray mixed = ValueFactory.createArray(3);
+            for (int j = 0; j < 1000; j++) {
+                histogram.add(ValueFactory.create(1400000000000L + (i * 1000) + j));
+            }
+            for (int j = 0; j < 100; j++) {
+                vector.add(ValueFactory.create((i - j) / 7.0));
+            }
+            mixed.add(ValueFactory.create(i));
+            mixed.add(ValueFactory.create(i / 2.0));
+            mixed.add(ValueFactory.create("x" + i));
+            bundle.setValue(inputFormat.getField("histogram"), histogram);
+            bundle.setValue(inputFormat.getField("vector"), vector);
+            bundle.setValue(inputFormat.getField("mixed"), mixed);
+            bundle.setValue(inputFormat.getField("random"), ValueFactory.createArray(
+                    new long[]{Long.MIN_VALUE, -1, Long.MAX_VALUE, 0, 1L << 40, -(i * 31L)}));
+            input.add(bundle);
+        }
+        byte[] encoded = encodeAll(input, DataChannelCodec.createStreamState());
+        // deltas of one take a byte per element, against nine for tagged longs
+        assertTrue(Integer.toString(encoded.length), encoded.length < 10 * (1000 + 100 * 8 + 200));
+        ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            for (String name : new String[]{"histogram", "vector", "mixed", "random"}) {
+                assertEquals(name, bundle.getValue(inputFormat.getField(name)),
+                             output.getValue(format.getField(name)));
+            }
+            assertTrue(output.getValue(format.getField("histogram")) instanceof LongValueArray);
+            assertTrue(output.getValue(format.getField("vector")) instanceof DoubleValueArray);
+            assertTrue(output.getValue(format.getField("random")) instanceof LongValueArray);
+            assertTrue(output.getValue(format.getField("mixed")) instanceof DefaultArray);
+            // packed arrays compare and hash like the boxed lists they stand for
+            ValueObject histogram = output.getValue(format.getField("histogram"));
+            assertEquals(histogram, bundle.getValue(inputFormat.getField("histogram")));
+            assertEquals(bundle.getValue(inputFormat.getField("histogram")).hashCode(), histogram.hashCode());
+            assertEquals(bundle.getValue(inputFormat.getField("vector")).hashCode(),
+                         output.getValue(format.getField("vector")).hashCode());
+            assertEquals(histogram, ValueFactory.createArray(((LongValueArray) histogram).toLongArray()));
+        }
+        assertEquals(0, in.available());
+        // projected decodes skip packed arrays
+        in = new ByteArrayInputStream(encoded);
+        decoder = DataChannelCodec.createDecoderState();
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder,
+                                                          ImmutableSet.of("mixed"));
+            assertEquals(1, output.getCount());
+        }
+        assertEquals(0, in.available());
+        // storing another type boxes the array, which is then written tagged
+        LongValueArray decoded = (LongValueArray) DataChannelCodec.decodeBundle(
+                new ListBundle(), DataChannelCodec.encodeBundle(input.get(0))).getValue(format.getField("random"));
+        decoded.add(ValueFactory.create(3));
+        assertTrue(decoded.isPacked());
+        assertEquals(3, decoded.getLong(6));
+        decoded.set(0, ValueFactory.create("x"));
+        assertFalse(decoded.isPacked());
+        assertEquals(7, decoded.size());
+        assertEquals(Long.MAX_VALUE, decoded.getLong(2));
+        Bundle boxed = new ListBundle();
+        boxed.setValue(boxed.getFormat().getField("random"), decoded);
+        Bundle output = DataChannelCodec.decodeBundle(new ListBundle(), DataChannelCodec.encodeBundle(boxed));
+        assertEquals(decoded, output.getValue(output.getFormat().getField("random")));
+    }
+
+    @Test
+    public void customTypes() throws Exception {
+        CustomTypeRegistry registry = new CustomTypeRegistry();
+        registry.register(100, RegisteredCounter.class);
+        registry.register(101, DirectCounter.class, DirectCounter::new);
+        List<Bundle> input = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Bundle bundle = new ListBundle();
+            bundle.setValue(bundle.getFormat().getField("named"), new MapCounter(i));
+            bundle.setValue(bundle.getFormat().getField("registered"), new RegisteredCounter(i * 10L));
+            bundle.setValue(bundle.getFormat().getField("direct"), new DirectCounter(-i * 100L));
+            input.add(bundle);
+        }
+        StreamState encoder = DataChannelCodec.createStreamState();
+        encoder.setCustomTypes(registry);
+        byte[] encoded = encodeAll(input, encoder);
+        String text = new String(encoded, "ISO-8859-1");
+        assertTrue(text.contains(MapCounter.class.getName()));
+        assertFalse(text.contains(RegisteredCounter.class.getName()));
+        assertFalse(text.contains(DirectCounter.class.getName()));
+        // record buffers are read in place, other streams through a copy
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        encoder = DataChannelCodec.createStreamState();
+        encoder.setCustomTypes(registry);
+        try (DataChannelWriter writer = new DataChannelWriter(framed, encoder, null)) {
+            for (Bundle bundle : input) {
+                writer.write(bundle);
+            }
+        }
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(framed.toByteArray()));
+        reader.setCustomTypes(registry);
+        ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        decoder.setCustomTypes(registry);
+        ListBundleFormat format = new ListBundleFormat();
+        for (Bundle bundle : input) {
+            Bundle copied = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder);
+            Bundle viewed = reader.read();
+            for (String name : new String[]{"named", "registered", "direct"}) {
+                assertEquals(name, bundle.getValue(bundle.getFormat().getField(name)),
+                             copied.getValue(format.getField(name)));
+                assertEquals(name, bundle.getValue(bundle.getFormat().getField(name)),
+                             viewed.getValue(viewed.getFormat().getField(name)));
+            }
+        }
+        assertEquals(0, in.available());
+        reader.close();
+        // projected decodes skip registered values
+        in = new ByteArrayInputStream(encoded);
+        decoder = DataChannelCodec.createDecoderState();
+        decoder.setCustomTypes(registry);
+        for (Bundle bundle : input) {
+            Bundle output = DataChannelCodec.decodeBundle(new ListBundle(format), in, decoder,
+                                                          ImmutableSet.of("named"));
+            assertEquals(1, output.getCount());
+        }
+        assertEquals(0, in.available());
+        try {
+            registry.register(100, MapCounter.class);
+            fail("expected an id registered to another class to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(-1, registry.idOf(MapCounter.class));
+        assertEquals(DirectCounter.class, registry.typeOf(101));
+        // classes without a public no-arg constructor need a factory
+        CustomTypeRegistry other = new CustomTypeRegistry();
+        try {
+            other.register(101, DirectCounter.class);
+            fail("expected a class without a public no-arg constructor to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertNull(other.typeOf(101));
+        // the default registry is untouched, so its readers cannot resolve the ids
+        assertNull(CustomTypeRegistry.getDefault().typeOf(100));
+        assertEquals(-1, CustomTypeRegistry.getDefault().idOf(DirectCounter.class));
+        try {
+            DataChannelCodec.decodeBundle(new ListBundle(format), new ByteArrayInputStream(encoded),
+                                          DataChannelCodec.createDecoderState());
+            fail("expected ids unknown to the default registry to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void batches() throws Exception {
+        List<Bundle> input = ImmutableList.of(Bundles.decode("host : web01, country : US, status : 200"),
+                                              Bundles.decode("host : web02, country : US, tags : [a, b]"),
+                                              Bundles.decode("host : web01, country : GB, status : 404"),
+                                              Bundles.decode("country : US"));
+        byte[] batch = DataChannelCodec.encodeBundles(input);
+        // field names are defined once for the whole batch
+        assertTrue(batch.length + " vs " + encodeEach(input), batch.length < encodeEach(input) - 3 * "host".length());
+        List<Bundle> output = new ArrayList<>();
+        assertEquals(4, DataChannelCodec.decodeBundles(batch, new ListBundleFormat(), output::add));
+        assertEquals(4, output.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Bundles.getAsStringMapSlowly(input.get(i)), Bundles.getAsStringMapSlowly(output.get(i)));
+        }
+        // consecutive batches share the stream state and only the first starts with BUNDLE_INIT
+        StreamState encoder = DataChannelCodec.createStreamState(16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataChannelCodec.encodeBundles(input, out, encoder);
+        int first = out.size();
+        DataChannelCodec.encodeBundles(input.subList(0, 2)::iterator, out, encoder);
+        assertTrue(out.size() - first < first / 2);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        StreamState decoder = DataChannelCodec.createDecoderState();
+        ListBundleFormat format = new ListBundleFormat();
+        output.clear();
+        assertEquals(4, DataChannelCodec.decodeBundles(in, decoder, format, output::add));
+        assertEquals(2, DataChannelCodec.decodeBundles(in, decoder, format, output::add));
+        assertEquals(0, in.available());
+        assertEquals(Bundles.getAsStringMapSlowly(input.get(1)), Bundles.getAsStringMapSlowly(output.get(5)));
+        try {
+            DataChannelCodec.decodeBundles(Arrays.copyOf(batch, batch.length - 8), new ListBundleFormat(), b -> { });
+            fail("expected a truncated batch to fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static int encodeEach(List<Bundle> bundles) throws Exception {
+        int size = 0;
+        for (Bundle bundle : bundles) {
+            size += DataChannelCodec.encodeBundle(bundle).length;
+        }
+        return size;
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownTag() throws Exception {
+        DataChannelCodec.decodeBundle(new ListBundle(), new byte[]{12, 99});
+    }
+
+    @Test
+    public void corruptIndexes() throws Exception {
+        byte[][] corrupt = {
+                // undefined field, value dictionary and class indexes
+                {11, 13, 5, 0, 15},
+                {11, 14, 1, 1, 'a', 17, 40, 15},
+                {11, 14, 1, 1, 'a', 9, 7, 0, 15},
+                // an index far past the end of the dictionary
+                {11, 13, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f, 0, 15}};
+        for (byte[] bytes : corrupt) {
+            try {
+                DataChannelCodec.decodeBundle(new ListBundle(), new ByteArrayInputStream(bytes),
+                                              DataChannelCodec.createDecoderState());
+                fail("expected corrupt input to fail: " + Arrays.toString(bytes));
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    static byte[] encodeAll(Iterable<Bundle> bundles, StreamState state) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Bundle bundle : bundles) {
+            DataChannelCodec.encodeBundle(bundle, out, state);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] encodeAll(Iterable<Bundle> bundles, FieldIndexMap fieldMap, ClassIndexMap classMap)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Bundle bundle : bundles) {
+            DataChannelCodec.encodeBundle(bundle, out, fieldMap, classMap);
+        }
+        return out.toByteArray();
+    }
+
+    public static class MapCounter extends AbstractCustom<Long> {
+
+        public MapCounter() {
+            this(0);
+        }
+
+        MapCounter(long count) {
+            super(count);
+        }
+
+        @Override public ValueMap asMap() {
+            ValueMap map = ValueFactory.createMap();
+            map.put("count", ValueFactory.create(heldObject));
+            return map;
+        }
+
+        @Override public void setValues(ValueMap map) {
+            heldObject = map.get("count").asLong().getLong();
+        }
+
+        @Override public ValueLong asLong() {
+            return ValueFactory.create(heldObject);
+        }
+
+        @Override public boolean equals(Object obj) {
+            return (obj != null) && (obj.getClass() == getClass()) && heldObject.equals(((MapCounter) obj).heldObject);
+        }
+
+        @Override public int hashCode() {
+            return heldObject.hashCode();
+        }
+    }
+
+    public static class RegisteredCounter extends MapCounter {
+
+        public RegisteredCounter() {
+        }
+
+        RegisteredCounter(long count) {
+            super(count);
+        }
+    }
+
+    public static class DirectCounter extends MapCounter implements DirectValueCustom<Long> {
+
+        DirectCounter() {
+        }
+
+        DirectCounter(long count) {
+            super(count);
+        }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            Varints.writeSigned(heldObject, out);
+        }
+
+        @Override public void readFrom(InputStream in, int length) throws IOException {
+            heldObject = Varints.readSigned(in);
+        }
+    }
 }
@@ -0,0 +1,464 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.Bundles;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+import com.addthis.bundle.value.ValueFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDataChannelReader {
+
+    static List<Bundle> testBundles() throws IOException {
+        return ImmutableList.of(
+            Bundles.decode("abc : 1, def : two, ghi : [3, 4]"),
+            Bundles.decode("abc : 5, def : six, ghi : [7]"),
+            Bundles.decode("abc : -8, def : nine, jkl : {m : 10.5}"),
+            Bundles.decode("def : \"a much longer value that forces the reader to grow its record buffer past the "
+                           + "initial size it starts out with, which is a couple hundred bytes or so\""));
+    }
+
+    static void assertBundlesEqual(List<Bundle> expected, BundleReader reader) throws IOException {
+        for (Bundle bundle : expected) {
+            assertEquals(Bundles.getAsStringMapSlowly(bundle), Bundles.getAsStringMapSlowly(reader.read()));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<Bundle> bundles = testBundles();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out)) {
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+        }
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(out.toByteArray()));
+        assertBundlesEqual(bundles, reader);
+        try {
+            reader.read();
+            fail("expected end of stream");
+        } catch (EOFException ignored) {
+        }
+    }
+
+    @Test
+    public void valueDictionary() throws Exception {
+        List<Bundle> bundles = testBundles();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, 16)) {
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+        }
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(out.toByteArray()));
+        assertBundlesEqual(bundles, reader);
+        assertBundlesEqual(bundles, reader);
+    }
+
+    @Test
+    public void skipCorrupt() throws Exception {
+        List<Bundle> bundles = testBundles();
+        FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+        ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LessBytes.writeBytes(DataChannelCodec.encodeBundle(bundles.get(0), fieldMap, classMap), out);
+        LessBytes.writeBytes(new byte[]{12, 99, 1, 2, 3}, out);
+        LessBytes.writeBytes(DataChannelCodec.encodeBundle(bundles.get(1), fieldMap, classMap), out);
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(out.toByteArray()), true);
+        assertBundlesEqual(ImmutableList.of(bundles.get(0), bundles.get(1)), reader);
+        assertEquals(1, reader.getCorruptCount());
+    }
+
+    private static byte[] writeChecksummed(List<Bundle> bundles, int copies, int checkpointInterval,
+                                           List<Long> checkpoints) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataChannelWriter writer = new DataChannelWriter(out, DataChannelCodec.createStreamState(16, true),
+                                                         checkpointInterval, true);
+        for (int i = 0; i < copies; i++) {
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+        }
+        writer.close();
+        if (checkpoints != null) {
+            DataChannelIndex index = writer.getIndex();
+            for (int i = 0; i < index.getCheckpointCount(); i++) {
+                checkpoints.add(index.getOffset(i));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void checksummedFrames() throws Exception {
+        List<Bundle> bundles = testBundles();
+        byte[] raw = writeChecksummed(bundles, 3, 0, null);
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(raw),
+                                                         false, true);
+        for (int i = 0; i < 3; i++) {
+            assertBundlesEqual(bundles, reader);
+        }
+        try {
+            reader.read();
+            fail("expected end of stream");
+        } catch (EOFException ignored) {
+        }
+    }
+
+    @Test
+    public void checksumMismatchFails() throws Exception {
+        byte[] raw = writeChecksummed(testBundles(), 3, 0, null);
+        raw[raw.length / 2] ^= 0x10;
+        assertReadFails(raw);
+        byte[] truncated = writeChecksummed(testBundles(), 3, 0, null);
+        assertReadFails(Arrays.copyOf(truncated, truncated.length - 3));
+    }
+
+    @Test
+    public void oversizeRecordLeavesWriterUsable() throws Exception {
+        Bundle oversize = new ListBundle();
+        oversize.setValue(oversize.getFormat().getField("abc"),
+                          ValueFactory.create(new byte[DataChannelWriter.MAX_CHECKED_RECORD + 1]));
+        List<Bundle> bundles = testBundles();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataChannelWriter writer = new DataChannelWriter(out, DataChannelCodec.createStreamState(16, true), 0, true);
+        writer.write(bundles.get(0));
+        try {
+            writer.write(oversize);
+            fail("expected oversize record to be rejected");
+        } catch (IOException expected) {
+        }
+        writer.write(bundles.get(1));
+        writer.close();
+        assertEquals(2, writer.getIndex().getRowCount());
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(out.toByteArray()), false, true);
+        assertBundlesEqual(bundles.subList(0, 2), reader);
+        try {
+            reader.read();
+            fail("expected end of stream");
+        } catch (EOFException ignored) {
+        }
+    }
+
+    private static void assertReadFails(byte[] raw) throws Exception {
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(raw),
+                                                         false, true);
+        try {
+            while (true) {
+                reader.read();
+            }
+        } catch (EOFException ex) {
+            fail("damage read as end of stream");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void resynchronizeAtCheckpoint() throws Exception {
+        List<Bundle> bundles = testBundles();
+        List<Long> checkpoints = new ArrayList<>();
+        byte[] raw = writeChecksummed(bundles, 4, bundles.size(), checkpoints);
+        // damage the first record of the second copy and the tail of the third
+        raw[(int) (checkpoints.get(1) + 4)] ^= 0x01;
+        raw[checkpoints.get(3).intValue() - 2] ^= 0x40;
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(raw),
+                                                         true, true);
+        assertBundlesEqual(bundles, reader);
+        assertBundlesEqual(bundles.subList(0, bundles.size() - 1), reader);
+        assertBundlesEqual(bundles, reader);
+        try {
+            reader.read();
+            fail("expected end of stream");
+        } catch (EOFException ignored) {
+        }
+        assertEquals(bundles.size() + 1, reader.getCorruptCount());
+    }
+
+    @Test
+    public void dictionaryResetPolicy() throws Exception {
+        ListBundleFormat format = new ListBundleFormat();
+        List<Bundle> bundles = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Bundle bundle = format.createBundle();
+            // churning field names and string values
+            bundle.setValue(format.getField("f" + i), ValueFactory.create("v" + i));
+            bundle.setValue(format.getField("count"), ValueFactory.create(i));
+            bundles.add(bundle);
+        }
+        StreamState state = DataChannelCodec.createStreamState(16, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataChannelWriter writer = new DataChannelWriter(out, state, null);
+        writer.setResetPolicy(new DictionaryResetPolicy(0, 0, 10, 0));
+        for (Bundle bundle : bundles) {
+            writer.write(bundle);
+            assertTrue(state.dictionarySize() <= 13);
+        }
+        writer.close();
+        assertEquals(19, writer.getResetCount());
+        DataChannelReader reader = new DataChannelReader(format, new ByteArrayInputStream(out.toByteArray()));
+        assertBundlesEqual(bundles, reader);
+
+        out.reset();
+        writer = new DataChannelWriter(out, DataChannelCodec.createStreamState(16, true), null);
+        writer.setResetPolicy(new DictionaryResetPolicy(7, 0, 0, 0));
+        for (Bundle bundle : bundles) {
+            writer.write(bundle);
+        }
+        writer.close();
+        assertEquals(14, writer.getResetCount());
+        reader = new DataChannelReader(format, new ByteArrayInputStream(out.toByteArray()));
+        assertBundlesEqual(bundles, reader);
+    }
+
+    /** the records of bundles with an empty record inserted after the first */
+    static byte[] withEmptyRecord(List<Bundle> bundles, boolean trailing) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, 16)) {
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+        }
+        byte[] raw = out.toByteArray();
+        ByteArrayInputStream in = new ByteArrayInputStream(raw);
+        long first = LessBytes.readLength(in);
+        int split = trailing ? raw.length : (int) (raw.length - in.available() + first);
+        byte[] bytes = new byte[raw.length + 1];
+        System.arraycopy(raw, 0, bytes, 0, split);
+        System.arraycopy(raw, split, bytes, split + 1, raw.length - split);
+        return bytes;
+    }
+
+    @Test
+    public void zeroLengthRecords() throws Exception {
+        List<Bundle> bundles = testBundles();
+        byte[] middle = withEmptyRecord(bundles, false);
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(middle));
+        assertBundlesEqual(bundles.subList(0, 1), reader);
+        try {
+            reader.read();
+            fail("expected a zero length record mid-stream to fail");
+        } catch (EOFException unexpected) {
+            fail("expected a zero length record to fail as corrupt, not as the end of the stream");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("record #2"));
+        }
+        // skipped when skipping corrupt records, and the end of the bundles at the end of the stream
+        reader = new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(middle), true);
+        assertBundlesEqual(bundles, reader);
+        assertEquals(1, reader.getCorruptCount());
+        reader = new DataChannelReader(new ListBundleFormat(),
+                                       new ByteArrayInputStream(withEmptyRecord(bundles, true)));
+        assertBundlesEqual(bundles, reader);
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void blockFraming() throws Exception {
+        blockFraming(false);
+        blockFraming(true);
+    }
+
+    private static void blockFraming(boolean readAhead) throws Exception {
+        List<Bundle> bundles = testBundles();
+        // three bundles per block, so the last block is partial
+        BlockFraming framing = new BlockFraming(new DeflateBlockCodec(), 3, 64 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, 16, framing)) {
+            for (int i = 0; i < 5; i++) {
+                for (Bundle bundle : bundles) {
+                    writer.write(bundle);
+                }
+            }
+        }
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(out.toByteArray()),
+                                                         framing, readAhead);
+        for (int i = 0; i < 5; i++) {
+            assertBundlesEqual(bundles, reader);
+        }
+        for (int i = 0; i < 2; i++) {
+            try {
+                reader.read();
+                fail("expected end of stream");
+            } catch (EOFException ignored) {
+            }
+        }
+        reader.close();
+        // pooled deflaters are ended on close and the codec still works after
+        framing.getCodec().close();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        framing.getCodec().compress(new byte[100], 100, compressed);
+        byte[] inflated = new byte[100];
+        framing.getCodec().decompress(compressed.toByteArray(), compressed.size(), inflated, 100);
+        assertArrayEquals(new byte[100], inflated);
+    }
+
+    @Test
+    public void incompressibleBlocksStoredRaw() throws Exception {
+        List<Bundle> bundles = testBundles();
+        BlockFraming framing = new BlockFraming(new DeflateBlockCodec(), 1, 64 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, 0, framing)) {
+            writer.write(bundles.get(0));
+        }
+        byte[] bytes = out.toByteArray();
+        assertEquals(0, bytes[0]);
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(bytes), framing, true);
+        assertBundlesEqual(bundles.subList(0, 1), reader);
+        reader.close();
+    }
+
+    @Test
+    public void blockRecordCountChecked() throws Exception {
+        List<Bundle> bundles = testBundles();
+        BlockFraming framing = new BlockFraming(new DeflateBlockCodec(), 1, 64 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, 0, framing)) {
+            writer.write(bundles.get(0));
+        }
+        byte[] bytes = out.toByteArray();
+        // a raw block whose header claims one more record than it holds
+        assertEquals(0, bytes[0]);
+        assertEquals(1, bytes[1]);
+        bytes[1] = 2;
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(bytes), framing, false);
+        assertBundlesEqual(bundles.subList(0, 1), reader);
+        try {
+            reader.read();
+            fail("expected a short block to fail");
+        } catch (EOFException unexpected) {
+            fail("expected a short block to fail as corrupt, not as the end of the stream");
+        } catch (IOException expected) {
+        }
+        reader.close();
+        framing.getCodec().close();
+    }
+
+    @Test
+    public void blockLengthsChecked() throws Exception {
+        BlockFraming framing = new BlockFraming(new DeflateBlockCodec(), 1, 64 * 1024);
+        long[][] corrupt = {
+                // codec id, record count, raw length, stored length
+                {0, 1L << 40, 10, 10},
+                {0, 1, 1L << 40, 10},
+                {1, 1, 10, 1L << 40},
+                {0, 11, 10, 10},
+                {1, 1, 10, 3, 0, 0, 0}};
+        for (boolean readAhead : new boolean[]{false, true}) {
+            for (long[] fields : corrupt) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write((int) fields[0]);
+                for (int i = 1; i < fields.length; i++) {
+                    if (i < 4) {
+                        LessBytes.writeLength(fields[i], out);
+                    } else {
+                        out.write((int) fields[i]);
+                    }
+                }
+                DataChannelReader reader = new DataChannelReader(
+                        new ListBundleFormat(), new ByteArrayInputStream(out.toByteArray()), framing, readAhead);
+                try {
+                    reader.read();
+                    fail("expected corrupt block header to fail: " + Arrays.toString(fields));
+                } catch (EOFException unexpected) {
+                    fail("expected corrupt block header to fail as corrupt: " + Arrays.toString(fields));
+                } catch (IOException expected) {
+                }
+                reader.close();
+            }
+        }
+        framing.getCodec().close();
+    }
+
+    @Test
+    public void filterAndProjection() throws Exception {
+        ListBundleFormat inputFormat = new ListBundleFormat();
+        List<Bundle> bundles = new ArrayList<>();
+        String[] countries = {"US", "GB", "DE", "FR"};
+        for (int i = 0; i < 200; i++) {
+            Bundle bundle = new ListBundle(inputFormat);
+            bundle.setValue(inputFormat.getField("time"), ValueFactory.create(1000 + i));
+            bundle.setValue(inputFormat.getField("country"), ValueFactory.create(countries[i % 4]));
+            bundle.setValue(inputFormat.getField("path"), ValueFactory.create("/page/" + (i % 7)));
+            bundles.add(bundle);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, DataChannelCodec.createStreamState(64, true),
+                                                              null)) {
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+        }
+        DataChannelReader reader = new DataChannelReader(new ListBundleFormat(),
+                                                         new ByteArrayInputStream(out.toByteArray()));
+        reader.setFilter(new FieldFilter(FieldPredicate.equalTo("country", "US"),
+                                         FieldPredicate.range("time", 1100, Long.MAX_VALUE)));
+        reader.setProjection(ImmutableSet.of("time", "path"));
+        for (int i = 100; i < 200; i += 4) {
+            Bundle bundle = reader.read();
+            assertEquals(ImmutableMap.of("time", String.valueOf(1000 + i), "path", "/page/" + (i % 7)),
+                         Bundles.getAsStringMapSlowly(bundle));
+        }
+        try {
+            reader.read();
+            fail("expected end of stream");
+        } catch (EOFException ignored) {
+        }
+        assertEquals(175, reader.getFilteredCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void strictByDefault() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LessBytes.writeBytes(new byte[]{12, 99, 1, 2, 3}, out);
+        new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(out.toByteArray())).read();
+    }
+}
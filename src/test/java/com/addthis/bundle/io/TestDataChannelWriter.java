@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+
+import java.util.List;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestDataChannelWriter {
+
+    @Test
+    public void sameFormatAsEncodeBundle() throws Exception {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+        ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (Bundle bundle : bundles) {
+            LessBytes.writeBytes(DataChannelCodec.encodeBundle(bundle, fieldMap, classMap), expected);
+        }
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        CountingOutputStream counting = new CountingOutputStream(actual);
+        try (DataChannelWriter writer = new DataChannelWriter(counting)) {
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertEquals(bundles.size(), counting.writes);
+    }
+
+    @Test
+    public void lengthPrefix() throws Exception {
+        for (int length : new int[]{0, 1, 127, 128, 16383, 16384, 1 << 21, Integer.MAX_VALUE}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            LessBytes.writeLength(length, expected);
+            assertEquals(expected.size(), ReusableByteArrayOutputStream.lengthPrefixSize(length));
+        }
+        ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream();
+        buffer.startRecord();
+        byte[] payload = new byte[300];
+        payload[299] = 7;
+        buffer.write(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeRecordTo(out);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        LessBytes.writeBytes(payload, expected);
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+
+        int writes;
+
+        CountingOutputStream(ByteArrayOutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int b) throws IOException {
+            writes++;
+            out.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            out.write(b, off, len);
+        }
+    }
+}
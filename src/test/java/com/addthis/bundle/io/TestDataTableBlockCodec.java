@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.index.IndexBundleFormat;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.table.DataTableListWrapper;
+
+import org.junit.Test;
+
+import static com.addthis.bundle.io.TestDataTableColumnCodec.assertTablesEqual;
+import static com.addthis.bundle.io.TestDataTableColumnCodec.logTable;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDataTableBlockCodec {
+
+    private static byte[] encode(DataTable table, int blockRows) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataTableBlockCodec.toOutputStream(table, out, blockRows);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        DataTable table = logTable(1000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int blockRows : new int[]{1, 7, 1000, 5000}) {
+                DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+                DataTableBlockCodec.fromInputStream(copy, new ByteArrayInputStream(encode(table, blockRows)), pool);
+                assertTablesEqual(table, copy);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void indexBundles() throws IOException {
+        DataTable table = TestDataTableColumnCodec.indexTable(50);
+        IndexBundleFormat format = new IndexBundleFormat(4);
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>(), format, format);
+        DataTableBlockCodec.fromBytes(copy, encode(table, 7));
+        TestDataTableColumnCodec.assertIndexTablesEqual(table, copy);
+    }
+
+    @Test
+    public void parallelEncode() throws IOException {
+        DataTable table = logTable(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataTableBlockCodec.toOutputStream(table, out, 30, executor);
+            assertArrayEquals(encode(table, 30), out.toByteArray());
+            DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+            DataTableBlockCodec.fromBytes(copy, DataTableBlockCodec.toBytes(table, executor));
+            assertTablesEqual(table, copy);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyTable() throws IOException {
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+        DataTableBlockCodec.fromBytes(copy, DataTableBlockCodec.toBytes(logTable(0)));
+        assertEquals(0, copy.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        DataTableBlockCodec.fromBytes(new DataTableListWrapper(new ArrayList<Bundle>()), new byte[]{99, 0, 0});
+    }
+
+    @Test
+    public void corruptBlockFails() throws IOException {
+        byte[] raw = encode(logTable(100), 10);
+        // first byte of the last block is its BUNDLE_INIT tag
+        raw[raw.length - DataTableBlockCodec.encodeBlock(logTable(100).subList(90, 100)).length] = (byte) 0xff;
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+        try {
+            DataTableBlockCodec.fromBytes(copy, raw);
+            fail("expected decode failure");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, copy.size());
+    }
+
+    @Test
+    public void truncatedBlockFails() throws IOException {
+        DataTable table = logTable(20);
+        // the second block declares ten rows but holds five
+        byte[][] blocks = {DataTableBlockCodec.encodeBlock(table.subList(0, 10)),
+                           DataTableBlockCodec.encodeBlock(table.subList(10, 15))};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataTableBlockCodec.writeBlocks(20, 10, blocks, out);
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+        try {
+            DataTableBlockCodec.fromBytes(copy, out.toByteArray());
+            fail("expected decode failure");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("block 1 ends at row 5"));
+        }
+        assertEquals(0, copy.size());
+    }
+
+    @Test
+    public void corruptHeaderFails() throws IOException {
+        long[][] corrupt = {
+                // rows, block count, (block rows, block length)*
+                {1L << 40, 1},
+                {10, 1L << 40},
+                {10, 11},
+                {10, 1, 1L << 40, 100},
+                {10, 2, 8, 100, 8, 100},
+                {10, 1, 10, 5}};
+        for (long[] fields : corrupt) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(DataTableBlockCodec.VERSION);
+            for (long field : fields) {
+                LessBytes.writeLength(field, out);
+            }
+            try {
+                DataTableBlockCodec.fromBytes(new DataTableListWrapper(new ArrayList<Bundle>()), out.toByteArray());
+                fail("expected corrupt header to fail: " + Arrays.toString(fields));
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.Bundles;
+import com.addthis.bundle.core.index.IndexBundleFormat;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.table.DataTableListWrapper;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDataTableColumnCodec {
+
+    static DataTable logTable(int rows) {
+        DataTable table = new DataTableListWrapper(new ArrayList<Bundle>());
+        BundleFormat format = table.getFormat();
+        String[] methods = {"GET", "POST", "PUT"};
+        for (int i = 0; i < rows; i++) {
+            Bundle row = table.createBundle();
+            row.setValue(format.getField("time"), ValueFactory.create(1400000000000L + i * 17));
+            row.setValue(format.getField("method"), ValueFactory.create(methods[i % methods.length]));
+            row.setValue(format.getField("latency"), ValueFactory.create(i / 7.0));
+            if (i % 3 != 0) {
+                row.setValue(format.getField("delta"), ValueFactory.create(-i));
+            }
+            table.add(row);
+        }
+        return table;
+    }
+
+    /** a table of index bundles, whose fields have no names */
+    static DataTable indexTable(int rows) {
+        IndexBundleFormat format = new IndexBundleFormat(4);
+        DataTable table = new DataTableListWrapper(new ArrayList<Bundle>(), format, format);
+        for (int i = 0; i < rows; i++) {
+            Bundle row = table.createBundle();
+            row.setValue(format.getField(0), ValueFactory.create(1400000000000L + i * 17));
+            row.setValue(format.getField(1), ValueFactory.create((i % 2 == 0) ? "GET" : "POST"));
+            if (i % 3 != 0) {
+                row.setValue(format.getField(3), ValueFactory.create(i / 7.0));
+            }
+            table.add(row);
+        }
+        return table;
+    }
+
+    /** compare rows by field position, which works for formats without names */
+    static void assertIndexTablesEqual(DataTable expected, DataTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Bundle row = expected.get(i);
+            Bundle copy = actual.get(i);
+            assertTrue(copy.getFormat() instanceof IndexBundleFormat);
+            assertEquals(row.getFormat().getFieldCount(), copy.getFormat().getFieldCount());
+            for (int f = 0; f < row.getFormat().getFieldCount(); f++) {
+                assertEquals("row " + i + " field " + f, row.getValue(row.getFormat().getField(f)),
+                             copy.getValue(copy.getFormat().getField(f)));
+            }
+        }
+    }
+
+    static void assertTablesEqual(DataTable expected, DataTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(Bundles.getAsStringMapSlowly(expected.get(i)), Bundles.getAsStringMapSlowly(actual.get(i)));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        DataTable table = logTable(100);
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+        DataTableColumnCodec.fromBytes(copy, DataTableColumnCodec.toBytes(table));
+        assertTablesEqual(table, copy);
+    }
+
+    @Test
+    public void extremesAndMixedColumns() throws IOException {
+        DataTable table = new DataTableListWrapper(new ArrayList<Bundle>());
+        table.add(Bundles.decode("n : 0, s : a, mixed : 1, arr : [1, 2], m : {k : v}"));
+        table.add(Bundles.decode("s : b, mixed : two, arr : [], none : \"\""));
+        table.add(Bundles.decode("n : 1, mixed : 3.5"));
+        table.get(0).setValue(table.getFormat().getField("n"), ValueFactory.create(Long.MIN_VALUE));
+        table.get(2).setValue(table.getFormat().getField("n"), ValueFactory.create(Long.MAX_VALUE));
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+        DataTableColumnCodec.fromInputStream(copy, new ByteArrayInputStream(DataTableColumnCodec.toBytes(table)));
+        assertTablesEqual(table, copy);
+    }
+
+    @Test
+    public void indexBundles() throws IOException {
+        DataTable table = indexTable(50);
+        IndexBundleFormat format = new IndexBundleFormat(4);
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>(), format, format);
+        DataTableColumnCodec.fromBytes(copy, DataTableColumnCodec.toBytes(table));
+        assertIndexTablesEqual(table, copy);
+        // positional columns need a format with room for them
+        IndexBundleFormat narrow = new IndexBundleFormat(2);
+        try {
+            DataTableColumnCodec.fromBytes(new DataTableListWrapper(new ArrayList<Bundle>(), narrow, narrow),
+                                           DataTableColumnCodec.toBytes(table));
+            fail("expected columns past the format to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void emptyTable() throws IOException {
+        DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+        DataTableColumnCodec.fromBytes(copy, DataTableColumnCodec.toBytes(logTable(0)));
+        assertEquals(0, copy.size());
+    }
+
+    @Test
+    public void smallerThanRowEncoding() throws IOException {
+        DataTable table = logTable(1000);
+        int columnar = DataTableColumnCodec.toBytes(table).length;
+        int rows = DataChannelCodec.toBytes(table).length;
+        assertTrue(columnar + " should be under " + rows, columnar < rows);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        DataTableColumnCodec.fromBytes(new DataTableListWrapper(new ArrayList<Bundle>()), new byte[]{99, 0, 0});
+    }
+
+    @Test
+    public void corruptHeaderFails() throws IOException {
+        int huge = Integer.MAX_VALUE - 16;
+        byte[][] corrupt = {
+                // row count out of range
+                header(1L << 40, 1),
+                // many rows, one integer column and no values
+                column(header(huge, 1), 1),
+                // many rows and a truncated presence bitmap
+                column(header(huge, 1), 1 | 0x80),
+                // a string dictionary larger than the table
+                concat(column(header(2, 1), 3), 3),
+                // many rows and no columns at all
+                header(huge, 3)};
+        for (byte[] raw : corrupt) {
+            DataTable copy = new DataTableListWrapper(new ArrayList<Bundle>());
+            try {
+                DataTableColumnCodec.fromBytes(copy, raw);
+                fail("expected decode failure");
+            } catch (IOException expected) {
+            }
+            assertEquals(0, copy.size());
+        }
+    }
+
+    /** version, rows, columns and named column flag */
+    private static byte[] header(long rows, long columns) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(DataTableColumnCodec.VERSION);
+        LessBytes.writeLength(rows, out);
+        LessBytes.writeLength(columns, out);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    /** append a column named "a" of the given kind */
+    private static byte[] column(byte[] header, int kind) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        LessBytes.writeString("a", out);
+        out.write(kind);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] bytes, int value) {
+        byte[] copy = Arrays.copyOf(bytes, bytes.length + 1);
+        copy[bytes.length] = (byte) value;
+        return copy;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFieldPredicate {
+
+    @Test
+    public void longRange() {
+        FieldPredicate range = FieldPredicate.range("f", 10, Long.MAX_VALUE - 1);
+        assertTrue(range.test(ValueFactory.create(10)));
+        assertTrue(range.test(ValueFactory.create(Long.MAX_VALUE - 1)));
+        assertFalse(range.test(ValueFactory.create(Long.MAX_VALUE)));
+        assertFalse(range.test(ValueFactory.create(9)));
+        // floating point values are compared against the bounds as doubles
+        assertTrue(range.test(ValueFactory.create(10.0)));
+        assertFalse(range.test(ValueFactory.create(9.5)));
+        assertFalse(range.test(ValueFactory.create("10")));
+        assertFalse(range.test(null));
+    }
+
+    @Test
+    public void doubleRange() {
+        FieldPredicate range = FieldPredicate.range("f", 9.5, 20.25);
+        assertTrue(range.test(ValueFactory.create(10)));
+        assertTrue(range.test(ValueFactory.create(20)));
+        assertFalse(range.test(ValueFactory.create(9)));
+        assertFalse(range.test(ValueFactory.create(21)));
+        assertTrue(range.test(ValueFactory.create(9.5)));
+        assertTrue(range.test(ValueFactory.create(20.25)));
+        assertFalse(range.test(ValueFactory.create(20.5)));
+        // integers are compared exactly, not rounded to the nearest double
+        FieldPredicate below = FieldPredicate.range("f", Double.NEGATIVE_INFINITY, 0x1p62);
+        assertTrue(below.test(ValueFactory.create(1L << 62)));
+        assertFalse(below.test(ValueFactory.create((1L << 62) + 1)));
+        assertTrue(FieldPredicate.range("f", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+                                 .test(ValueFactory.create(Long.MIN_VALUE)));
+        assertFalse(FieldPredicate.range("f", 0x1p63, Double.POSITIVE_INFINITY)
+                                  .test(ValueFactory.create(Long.MAX_VALUE)));
+        assertFalse(FieldPredicate.range("f", Double.NaN, 1).test(ValueFactory.create(0)));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayOutputStream;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleException;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.Bundles;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec.StreamState;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestLazyBundle {
+
+    private static final String SOURCE =
+            "time : 1400000000000, host : web01, tags : [a, b, {c : 1}], geo : {country : US, lat : 37.5}, n : -5";
+
+    @Test
+    public void readFields() throws Exception {
+        Bundle source = Bundles.decode(SOURCE);
+        ListBundleFormat format = new ListBundleFormat();
+        LazyBundle lazy = new LazyBundle(format, DataChannelCodec.encodeBundle(source));
+        assertEquals("web01", lazy.getValue(format.getField("host")).asString().asNative());
+        assertEquals(-5, lazy.getValue(format.getField("n")).asLong().getLong());
+        assertNull(lazy.getValue(format.getField("missing")));
+        assertEquals(5, lazy.getCount());
+        assertEquals(Bundles.getAsStringMapSlowly(source), Bundles.getAsStringMapSlowly(lazy));
+        assertFalse(lazy.isModified());
+    }
+
+    @Test
+    public void unmodifiedReencodeIsVerbatim() throws Exception {
+        byte[] encoded = DataChannelCodec.encodeBundle(Bundles.decode(SOURCE));
+        byte[] framed = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, framed, 2, encoded.length);
+        ListBundleFormat format = new ListBundleFormat();
+        LazyBundle lazy = new LazyBundle(format, framed, 2, encoded.length);
+        lazy.getValue(format.getField("geo"));
+        assertArrayEquals(encoded, DataChannelCodec.encodeBundle(lazy));
+    }
+
+    @Test
+    public void modifications() throws Exception {
+        Bundle source = Bundles.decode(SOURCE);
+        ListBundleFormat format = new ListBundleFormat();
+        LazyBundle lazy = new LazyBundle(format, DataChannelCodec.encodeBundle(source));
+        BundleField host = format.getField("host");
+        BundleField extra = format.getField("extra");
+        lazy.setValue(host, ValueFactory.create("web02"));
+        lazy.setValue(extra, ValueFactory.create(7));
+        lazy.removeValue(format.getField("tags"));
+        assertTrue(lazy.isModified());
+        assertEquals(5, lazy.getCount());
+
+        source.removeValue(source.getFormat().getField("tags"));
+        source.setValue(source.getFormat().getField("host"), ValueFactory.create("web02"));
+        source.setValue(source.getFormat().getField("extra"), ValueFactory.create(7));
+        assertEquals(Bundles.getAsStringMapSlowly(source), Bundles.getAsStringMapSlowly(lazy));
+
+        Bundle decoded = DataChannelCodec.decodeBundle(new ListBundle(), DataChannelCodec.encodeBundle(lazy));
+        assertEquals(Bundles.getAsStringMapSlowly(source), Bundles.getAsStringMapSlowly(decoded));
+    }
+
+    @Test(expected = BundleException.class)
+    public void rejectsStreamEncoding() throws Exception {
+        StreamState state = DataChannelCodec.createStreamState();
+        DataChannelCodec.encodeBundle(Bundles.decode(SOURCE), new ByteArrayOutputStream(), state);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataChannelCodec.encodeBundle(Bundles.decode(SOURCE), out, state);
+        new LazyBundle(new ListBundleFormat(), out.toByteArray()).getCount();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.Bundles;
+import com.addthis.bundle.core.list.ListBundleFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestMappedDataChannelReader {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path writeFile(List<Bundle> bundles, int copies) throws Exception {
+        Path path = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(path);
+             DataChannelWriter writer = new DataChannelWriter(out, 16)) {
+            for (int i = 0; i < copies; i++) {
+                for (Bundle bundle : bundles) {
+                    writer.write(bundle);
+                }
+            }
+        }
+        return path;
+    }
+
+    private DataChannelIndex writeIndexed(Path path, List<Bundle> bundles, int interval) throws Exception {
+        return writeIndexed(path, bundles, interval, DictionaryResetPolicy.NEVER);
+    }
+
+    private DataChannelIndex writeIndexed(Path path, List<Bundle> bundles, int interval,
+                                          DictionaryResetPolicy resetPolicy) throws Exception {
+        DataChannelWriter writer;
+        try (OutputStream out = Files.newOutputStream(path)) {
+            writer = new DataChannelWriter(out, DataChannelCodec.createStreamState(16, true), interval);
+            writer.setResetPolicy(resetPolicy);
+            for (Bundle bundle : bundles) {
+                writer.write(bundle);
+            }
+            writer.close();
+        }
+        return writer.getIndex();
+    }
+
+    private static List<Bundle> repeat(List<Bundle> bundles, int copies) {
+        List<Bundle> repeated = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            repeated.addAll(bundles);
+        }
+        return repeated;
+    }
+
+    private static void readAll(Path path, List<Bundle> bundles, int copies, int windowSize) throws Exception {
+        try (MappedDataChannelReader reader = new MappedDataChannelReader(new ListBundleFormat(), path,
+                                                                          windowSize)) {
+            for (int i = 0; i < copies; i++) {
+                TestDataChannelReader.assertBundlesEqual(bundles, reader);
+            }
+            assertEquals(Files.size(path), reader.getPosition());
+            try {
+                reader.read();
+                fail("expected end of stream");
+            } catch (EOFException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void readMapped() throws Exception {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        Path path = writeFile(bundles, 10);
+        readAll(path, bundles, 10, MappedDataChannelReader.DEFAULT_WINDOW_SIZE);
+    }
+
+    @Test
+    public void smallWindows() throws Exception {
+        // windows smaller than some records force remapping mid record
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        Path path = writeFile(bundles, 10);
+        readAll(path, bundles, 10, 64);
+        readAll(path, bundles, 10, 5);
+    }
+
+    @Test
+    public void zeroLengthRecords() throws Exception {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        Path path = folder.newFile().toPath();
+        Files.write(path, TestDataChannelReader.withEmptyRecord(bundles, false));
+        try (MappedDataChannelReader reader = new MappedDataChannelReader(new ListBundleFormat(), path, 64)) {
+            TestDataChannelReader.assertBundlesEqual(bundles.subList(0, 1), reader);
+            try {
+                reader.read();
+                fail("expected a zero length record mid-file to fail");
+            } catch (EOFException unexpected) {
+                fail("expected a zero length record to fail as corrupt, not as the end of the file");
+            } catch (IOException expected) {
+            }
+        }
+        Files.write(path, TestDataChannelReader.withEmptyRecord(bundles, true));
+        try (MappedDataChannelReader reader = new MappedDataChannelReader(new ListBundleFormat(), path, 64)) {
+            TestDataChannelReader.assertBundlesEqual(bundles, reader);
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void seekToRow() throws Exception {
+        List<Bundle> bundles = repeat(TestDataChannelReader.testBundles(), 5);
+        Path path = folder.newFile().toPath();
+        DataChannelIndex index = writeIndexed(path, bundles, 3);
+        assertEquals(bundles.size(), index.getRowCount());
+        assertEquals(Files.size(path), index.getLength());
+        assertEquals((bundles.size() + 2) / 3, index.getCheckpointCount());
+        try (MappedDataChannelReader reader = new MappedDataChannelReader(new ListBundleFormat(), path, 64)) {
+            for (int row = bundles.size() - 1; row >= 0; row--) {
+                reader.seekToRow(index, row);
+                assertEquals(Bundles.getAsStringMapSlowly(bundles.get(row)),
+                             Bundles.getAsStringMapSlowly(reader.read()));
+            }
+        }
+    }
+
+    @Test
+    public void seekToPolicyReset() throws Exception {
+        List<Bundle> bundles = repeat(TestDataChannelReader.testBundles(), 5);
+        Path path = folder.newFile().toPath();
+        DataChannelIndex index = writeIndexed(path, bundles, 0, new DictionaryResetPolicy(7, 0, 0, 0));
+        assertEquals(0, index.getInterval());
+        assertEquals((bundles.size() + 6) / 7, index.getCheckpointCount());
+        for (int checkpoint = 0; checkpoint < index.getCheckpointCount(); checkpoint++) {
+            assertEquals(checkpoint * 7, index.getRow(checkpoint));
+        }
+        try (MappedDataChannelReader reader = new MappedDataChannelReader(new ListBundleFormat(), path, 64)) {
+            reader.seek(index.getOffset(2));
+            assertEquals(Bundles.getAsStringMapSlowly(bundles.get(14)), Bundles.getAsStringMapSlowly(reader.read()));
+            for (int row = bundles.size() - 1; row >= 0; row--) {
+                reader.seekToRow(index, row);
+                assertEquals(Bundles.getAsStringMapSlowly(bundles.get(row)),
+                             Bundles.getAsStringMapSlowly(reader.read()));
+            }
+        }
+        // interval and policy checkpoints together, read back from a sidecar
+        index = writeIndexed(path, bundles, 5, new DictionaryResetPolicy(3, 0, 0, 0));
+        index.writeSidecar(path);
+        index = DataChannelIndex.readSidecar(path);
+        long[] expected = {0, 3, 5, 8, 10, 13, 15, 18};
+        for (int checkpoint = 0; checkpoint < expected.length; checkpoint++) {
+            assertEquals(expected[checkpoint], index.getRow(checkpoint));
+        }
+        try (MappedDataChannelReader reader = new MappedDataChannelReader(new ListBundleFormat(), path, 64)) {
+            for (int row = bundles.size() - 1; row >= 0; row--) {
+                reader.seekToRow(index, row);
+                assertEquals(Bundles.getAsStringMapSlowly(bundles.get(row)),
+                             Bundles.getAsStringMapSlowly(reader.read()));
+            }
+        }
+    }
+
+    @Test
+    public void disjointRanges() throws Exception {
+        List<Bundle> bundles = repeat(TestDataChannelReader.testBundles(), 4);
+        Path path = folder.newFile().toPath();
+        DataChannelIndex index = writeIndexed(path, bundles, 5);
+        int rows = 0;
+        for (int checkpoint = 0; checkpoint < index.getCheckpointCount(); checkpoint++) {
+            try (MappedDataChannelReader reader = new MappedDataChannelReader(
+                    new ListBundleFormat(), path, MappedDataChannelReader.DEFAULT_WINDOW_SIZE,
+                    index.getOffset(checkpoint), index.getEndOffset(checkpoint))) {
+                int end = (int) ((checkpoint + 1 < index.getCheckpointCount()) ? index.getRow(checkpoint + 1)
+                                                                              : index.getRowCount());
+                TestDataChannelReader.assertBundlesEqual(bundles.subList(rows, end), reader);
+                try {
+                    reader.read();
+                    fail("expected end of range");
+                } catch (EOFException ignored) {
+                }
+                rows = end;
+            }
+        }
+        assertEquals(bundles.size(), rows);
+        // checkpoints are ordinary records to readers that ignore the index
+        readAll(path, bundles, 1, 64);
+    }
+
+    @Test
+    public void indexSidecar() throws Exception {
+        List<Bundle> bundles = repeat(TestDataChannelReader.testBundles(), 3);
+        Path path = folder.newFile().toPath();
+        DataChannelIndex index = writeIndexed(path, bundles, 2);
+        index.writeSidecar(path);
+        DataChannelIndex read = DataChannelIndex.readSidecar(path);
+        assertEquals(index.toString(), read.toString());
+    }
+
+    @Test
+    public void corruptIndex() throws Exception {
+        long[][] corrupt = {
+                // version, interval, rows, length, count, (row delta, offset delta)*
+                {DataChannelIndex.VERSION - 1, 4, 10, 100, 1, 0, 0},
+                {DataChannelIndex.VERSION, 4, 10, 100, 2, 0, 0, 4, 150},
+                {DataChannelIndex.VERSION, 4, 10, 100, 3, 0, 0, 4},
+                {DataChannelIndex.VERSION, 0, 10, 100, 11},
+                {DataChannelIndex.VERSION, 0, 10, 100, 1, 3, 0},
+                {DataChannelIndex.VERSION, 0, 10, 100, 2, 0, 0, 0, 50},
+                {DataChannelIndex.VERSION, 0, 10, 100, 2, 0, 0, 10, 50},
+                {DataChannelIndex.VERSION, 0, 10, 100, 2, 0, 0, 4}};
+        for (long[] fields : corrupt) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (long field : fields) {
+                LessBytes.writeLength(field, out);
+            }
+            try {
+                DataChannelIndex.readFrom(new ByteArrayInputStream(out.toByteArray()));
+                fail("expected corrupt index to fail: " + Arrays.toString(fields));
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.bundle.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFactory;
+import com.addthis.bundle.core.list.ListBundleFormat;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPrefetchingBundleReader {
+
+    private static byte[] encode(List<Bundle> bundles, int copies) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataChannelWriter writer = new DataChannelWriter(out, 16)) {
+            for (int i = 0; i < copies; i++) {
+                for (Bundle bundle : bundles) {
+                    writer.write(bundle);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readAhead() throws IOException {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        byte[] raw = encode(bundles, 20);
+        try (BundleReader reader = new PrefetchingBundleReader(
+                new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(raw)), 7, 2)) {
+            for (int i = 0; i < 20; i++) {
+                TestDataChannelReader.assertBundlesEqual(bundles, reader);
+            }
+            for (int i = 0; i < 2; i++) {
+                try {
+                    reader.read();
+                    fail("expected end of stream");
+                } catch (EOFException expected) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void errorAfterBundles() throws IOException {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        byte[] raw = encode(bundles, 1);
+        // cut the last record short
+        byte[] truncated = Arrays.copyOf(raw, raw.length - 2);
+        try (BundleReader reader = new PrefetchingBundleReader(
+                new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(truncated)), 100, 1)) {
+            TestDataChannelReader.assertBundlesEqual(bundles.subList(0, bundles.size() - 1), reader);
+            try {
+                reader.read();
+                fail("expected error");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void nullEndAndClose() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        BundleReader empty = new BundleReader() {
+            @Override
+            public Bundle read() {
+                return null;
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+
+            @Override
+            public BundleFactory getFactory() {
+                return new ListBundleFormat();
+            }
+        };
+        BundleReader reader = new PrefetchingBundleReader(empty);
+        assertNull(reader.read());
+        assertNull(reader.read());
+        reader.close();
+        assertTrue(closed.get());
+        try {
+            reader.read();
+            fail("expected closed reader");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void closeWhileAhead() throws IOException {
+        List<Bundle> bundles = TestDataChannelReader.testBundles();
+        BundleReader reader = new PrefetchingBundleReader(
+                new DataChannelReader(new ListBundleFormat(), new ByteArrayInputStream(encode(bundles, 100))), 4, 2);
+        TestDataChannelReader.assertBundlesEqual(bundles, reader);
+        // the prefetch thread is blocked on a full queue here
+        reader.close();
+        reader.close();
+    }
+
+    @Test
+    public void closeDuringBlockedRead() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean inRead = new AtomicBoolean();
+        AtomicBoolean closedInRead = new AtomicBoolean();
+        CountDownLatch closed = new CountDownLatch(1);
+        BundleReader blocking = new BundleReader() {
+            @Override
+            public Bundle read() {
+                inRead.set(true);
+                reading.countDown();
+                // like a stream read, ignores interrupts
+                Uninterruptibles.awaitUninterruptibly(release);
+                inRead.set(false);
+                return null;
+            }
+
+            @Override
+            public void close() {
+                closedInRead.set(inRead.get());
+                closed.countDown();
+            }
+
+            @Override
+            public BundleFactory getFactory() {
+                return new ListBundleFormat();
+            }
+        };
+        PrefetchingBundleReader reader = new PrefetchingBundleReader(blocking, PrefetchingBundleReader.DEFAULT_BATCH_SIZE,
+                                                                     PrefetchingBundleReader.DEFAULT_BATCHES, 10);
+        reading.await();
+        reader.close();
+        // the reader is left to the prefetch thread rather than closed under it
+        assertEquals(1, closed.getCount());
+        release.countDown();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertFalse(closedInRead.get());
+    }
+}